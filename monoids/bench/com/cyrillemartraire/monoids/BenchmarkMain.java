@@ -0,0 +1,41 @@
+package com.cyrillemartraire.monoids;
+
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.ChainedOptionsBuilder;
+import org.openjdk.jmh.runner.options.CommandLineOptionException;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Runs every benchmark with the GC profiler, once per thread count, to see
+ * throughput, allocation rate and scaling together. Any JMH command-line
+ * option (e.g. a benchmark name regexp or -p size=1000) narrows the run; a
+ * benchmark regexp, -t or -f replaces the default benchmarks, thread counts
+ * or single fork.
+ */
+public class BenchmarkMain {
+
+	private static final String ALL_BENCHMARKS = "com.cyrillemartraire.monoids.*Benchmark";
+	private static final int[] THREADS = { 1, 2, 4, 8 };
+
+	public static void main(String[] args) throws RunnerException, CommandLineOptionException {
+		final CommandLineOptions commandLine = new CommandLineOptions(args);
+		final boolean threadsGiven = commandLine.getThreads().hasValue();
+		for (int threads : threadsGiven ? new int[] { commandLine.getThreads().get() } : THREADS) {
+			final ChainedOptionsBuilder options = new OptionsBuilder().parent(commandLine)
+					.addProfiler(GCProfiler.class);
+			if (commandLine.getIncludes().isEmpty()) {
+				options.include(ALL_BENCHMARKS);
+			}
+			if (!threadsGiven) {
+				options.threads(threads);
+			}
+			if (!commandLine.getForkCount().hasValue()) {
+				options.forks(1);
+			}
+			new Runner(options.build()).run();
+		}
+	}
+}
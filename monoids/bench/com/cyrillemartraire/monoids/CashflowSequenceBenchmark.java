@@ -0,0 +1,64 @@
+package com.cyrillemartraire.monoids;
+
+import java.time.LocalDate;
+import java.util.Currency;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import com.cyrillemartraire.monoids.CashflowSequenceTest.Cashflow;
+import com.cyrillemartraire.monoids.CashflowSequenceTest.CashflowSequence;
+
+/**
+ * Combining loan schedules: {@code sequences} schedules of {@code flows}
+ * monthly cashflows each
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class CashflowSequenceBenchmark {
+
+	private static final Currency EUR = Currency.getInstance("EUR");
+	private static final LocalDate START = LocalDate.parse("2018-01-01");
+
+	@Param({ "10", "1000" })
+	public int sequences;
+
+	@Param({ "12", "360" })
+	public int flows;
+
+	private CashflowSequence[] schedules;
+
+	@Setup
+	public void setUp() {
+		schedules = new CashflowSequence[sequences];
+		for (int s = 0; s < sequences; s++) {
+			final Cashflow[] cashflows = new Cashflow[flows];
+			for (int f = 0; f < flows; f++) {
+				cashflows[f] = new Cashflow(100 + s, EUR, START.plusDays(s % 28).plusMonths(f));
+			}
+			schedules[s] = new CashflowSequence(cashflows);
+		}
+	}
+
+	@Benchmark
+	public CashflowSequence addPairwise() {
+		CashflowSequence sum = CashflowSequence.EMPTY;
+		for (CashflowSequence schedule : schedules) {
+			sum = sum.add(schedule);
+		}
+		return sum;
+	}
+
+	@Benchmark
+	public CashflowSequence addAll() {
+		return CashflowSequence.EMPTY.add(schedules);
+	}
+}
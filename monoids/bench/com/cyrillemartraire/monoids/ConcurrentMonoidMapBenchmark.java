@@ -0,0 +1,43 @@
+package com.cyrillemartraire.monoids;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import com.cyrillemartraire.monoids.AverageTest.Average;
+import com.cyrillemartraire.monoids.ConcurrentMonoidMapTest.ConcurrentMonoidMap;
+
+/**
+ * Many threads adding averages into {@code keys} keys of one shared map; the
+ * throughput should grow with the threads unless the keys are too few
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class ConcurrentMonoidMapBenchmark {
+
+	@Param({ "1", "1000" })
+	public int keys;
+
+	private ConcurrentMonoidMap<Integer, Average.Accumulator, Average> map;
+	private Average value;
+
+	@Setup
+	public void setUp() {
+		map = ConcurrentMonoidMap.averages();
+		value = Average.of(42);
+	}
+
+	@Benchmark
+	public ConcurrentMonoidMap<Integer, Average.Accumulator, Average> add() {
+		return map.add(ThreadLocalRandom.current().nextInt(keys), value);
+	}
+}
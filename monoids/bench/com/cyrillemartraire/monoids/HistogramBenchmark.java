@@ -0,0 +1,54 @@
+package com.cyrillemartraire.monoids;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import com.cyrillemartraire.monoids.HistogramTest.Histogram;
+
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class HistogramBenchmark {
+
+	private static final Histogram EMPTY = Histogram.empty(10);
+
+	@Param({ "10", "1000", "100000" })
+	public int size;
+
+	private double[] points;
+	private Histogram[] histograms;
+
+	@Setup
+	public void setUp() {
+		final Random random = new Random(42);
+		points = new double[size];
+		histograms = new Histogram[size];
+		for (int i = 0; i < size; i++) {
+			points[i] = random.nextDouble() * 100.;
+			histograms[i] = EMPTY.withPoints(points[i]);
+		}
+	}
+
+	@Benchmark
+	public Histogram withPoints() {
+		return EMPTY.withPoints(points);
+	}
+
+	@Benchmark
+	public Histogram add() {
+		Histogram sum = EMPTY;
+		for (Histogram histogram : histograms) {
+			sum = sum.add(histogram);
+		}
+		return sum;
+	}
+}
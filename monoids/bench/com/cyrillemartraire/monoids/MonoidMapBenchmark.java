@@ -0,0 +1,78 @@
+package com.cyrillemartraire.monoids;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import com.cyrillemartraire.monoids.MonoidMapTest.MonoidMap;
+import com.cyrillemartraire.monoids.NestedMonoidMapTest.AndBoolean;
+import com.cyrillemartraire.monoids.NestedMonoidMapTest.LastWinsString;
+import com.cyrillemartraire.monoids.NestedMonoidMapTest.MinNumber;
+import com.cyrillemartraire.monoids.NestedMonoidMapTest.Monoid;
+import com.cyrillemartraire.monoids.NestedMonoidMapTest.NestedMonoidMap;
+
+/**
+ * Layered configuration resolution: {@code layers} maps of {@code keys}
+ * entries each, where every layer only overrides a tenth of the keys
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class MonoidMapBenchmark {
+
+	@Param({ "4", "64" })
+	public int layers;
+
+	@Param({ "10", "1000" })
+	public int keys;
+
+	private MonoidMap[] maps;
+	private NestedMonoidMap[] nestedMaps;
+
+	@Setup
+	public void setUp() {
+		maps = new MonoidMap[layers];
+		nestedMaps = new NestedMonoidMap[layers];
+		for (int l = 0; l < layers; l++) {
+			final Map<String, Object> map = new HashMap<>();
+			final Map<String, Monoid<?>> nested = new HashMap<>();
+			for (int k = 0; k < keys; k++) {
+				if (l == 0 || k % 10 == l % 10) {
+					map.put("KEY" + k, "L" + l);
+					nested.put("COLOR" + k, new LastWinsString("L" + l));
+					nested.put("TIMEOUT" + k, new MinNumber(l * k));
+					nested.put("ENABLE" + k, new AndBoolean(l % 2 == 0));
+				}
+			}
+			maps[l] = new MonoidMap(map);
+			nestedMaps[l] = new NestedMonoidMap(nested);
+		}
+	}
+
+	@Benchmark
+	public MonoidMap monoidMapAppend() {
+		MonoidMap result = new MonoidMap();
+		for (MonoidMap map : maps) {
+			result = result.append(map);
+		}
+		return result;
+	}
+
+	@Benchmark
+	public NestedMonoidMap nestedMonoidMapAppend() {
+		NestedMonoidMap result = new NestedMonoidMap();
+		for (NestedMonoidMap map : nestedMaps) {
+			result = result.append(map);
+		}
+		return result;
+	}
+}
@@ -0,0 +1,45 @@
+package com.cyrillemartraire.monoids;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import com.cyrillemartraire.monoids.AverageTest.LongAverage;
+import com.cyrillemartraire.monoids.ShardedAccumulatorTest.ShardedAccumulator;
+
+/**
+ * Many threads recording into one hot average, either sharded or through a
+ * single lock
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class ShardedAccumulatorBenchmark {
+
+	private ShardedAccumulator<LongAverage.Accumulator, LongAverage> sharded;
+	private LongAverage.Accumulator single;
+
+	@Setup
+	public void setUp() {
+		sharded = ShardedAccumulator.averages();
+		single = new LongAverage.Accumulator();
+	}
+
+	@Benchmark
+	public void sharded() {
+		sharded.record(42);
+	}
+
+	@Benchmark
+	public void singleLock() {
+		synchronized (single) {
+			single.addInPlace(42);
+		}
+	}
+}
@@ -0,0 +1,85 @@
+package com.cyrillemartraire.monoids;
+
+import static com.cyrillemartraire.monoids.EnvironmentalImpactTest.CertifiedAmount.certified;
+import static com.cyrillemartraire.monoids.EnvironmentalImpactTest.CertifiedAmount.uncertified;
+import static com.cyrillemartraire.monoids.EnvironmentalImpactTest.EnvironmentalImpact.singleSupplier;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import com.cyrillemartraire.monoids.AverageTest.Average;
+import com.cyrillemartraire.monoids.EnvironmentalImpactTest.EnvironmentalImpact;
+
+/**
+ * Folds of the small value monoids: {@link Length}, {@link Average} and
+ * {@link EnvironmentalImpact}
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class ValueMonoidsBenchmark {
+
+	@Param({ "10", "1000", "100000" })
+	public int size;
+
+	private Length[] lengths;
+	private Average[] averages;
+	private EnvironmentalImpact[] impacts;
+
+	@Setup
+	public void setUp() {
+		lengths = new Length[size];
+		averages = new Average[size];
+		impacts = new EnvironmentalImpact[size];
+		for (int i = 0; i < size; i++) {
+			lengths[i] = new Length(i % 100);
+			averages[i] = Average.of(i % 100, i % 7);
+			impacts[i] = i % 2 == 0 ? singleSupplier(certified(i % 10, "kWh", 0.3), certified(1, "T", 0.25))
+					: singleSupplier(uncertified(5, "kWh", 5.), uncertified(i % 3, "T", 1.));
+		}
+	}
+
+	@Benchmark
+	public Length lengthAdd() {
+		Length sum = Length.ZERO;
+		for (Length length : lengths) {
+			sum = sum.add(length);
+		}
+		return sum;
+	}
+
+	@Benchmark
+	public Average averageAdd() {
+		Average sum = Average.NEUTRAL;
+		for (Average average : averages) {
+			sum = sum.add(average);
+		}
+		return sum;
+	}
+
+	@Benchmark
+	public EnvironmentalImpact environmentalImpactAdd() {
+		EnvironmentalImpact sum = EnvironmentalImpact.none();
+		for (EnvironmentalImpact impact : impacts) {
+			sum = sum.add(impact);
+		}
+		return sum;
+	}
+
+	@Benchmark
+	public EnvironmentalImpact environmentalImpactTimes() {
+		EnvironmentalImpact sum = EnvironmentalImpact.none();
+		for (EnvironmentalImpact impact : impacts) {
+			sum = sum.add(impact.times(0.3));
+		}
+		return sum;
+	}
+}
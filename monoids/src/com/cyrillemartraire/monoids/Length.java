@@ -1,37 +1,66 @@
 package com.cyrillemartraire.monoids;
 
-import static java.lang.Double.doubleToLongBits;
-
 public class Length {
 	private final double length;
+	private final Unit unit;
 
 	public final static Length ZERO = new Length(0.);
 
 	public Length(double length) {
+		this(length, Unit.M);
+	}
+
+	public Length(double length, Unit unit) {
 		if (length < 0) {
 			throw new IllegalArgumentException("Length must be positive");
 		}
+		if (!unit.isCompatible(Unit.M)) {
+			throw new IllegalArgumentException("Not a unit of length: " + unit);
+		}
 		this.length = length;
+		this.unit = unit;
 	}
 
+	public double value() {
+		return length;
+	}
+
+	public Unit unit() {
+		return unit;
+	}
+
+	/** @return The sum, in the unit of this length */
 	public Length add(Length other) {
-		return new Length(length + other.length);
+		return new Length(length + other.length * other.unit.factorTo(unit), unit);
+	}
+
+	/** Retracts a length previously added; the result must remain positive */
+	public Length subtract(Length other) {
+		return new Length(length - other.length * other.unit.factorTo(unit), unit);
+	}
+
+	/** @return The length in meters, to compare lengths in any unit */
+	private double inMeters() {
+		return unit.toBase(length);
 	}
 
 	@Override
 	public int hashCode() {
-		return (int) (31 ^ doubleToLongBits(length));
+		return Double.hashCode(inMeters());
 	}
 
 	@Override
 	public boolean equals(Object o) {
+		if (!(o instanceof Length)) {
+			return false;
+		}
 		Length other = (Length) o;
-		return doubleToLongBits(length) == doubleToLongBits(other.length);
+		return Double.compare(inMeters(), other.inMeters()) == 0;
 	}
 
 	@Override
 	public String toString() {
-		return length + "kg";
+		return length + " " + unit;
 	}
 
 }
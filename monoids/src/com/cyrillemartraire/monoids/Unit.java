@@ -0,0 +1,118 @@
+package com.cyrillemartraire.monoids;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * An interned unit of measure: there is only one instance per symbol, with a
+ * small int id, so that comparing units is comparing ints. Units of the same
+ * dimension convert to each other through their factor to a base unit.
+ */
+public final class Unit {
+	private static final Map<String, Unit> UNITS = new ConcurrentHashMap<>();
+	private static int nextId;
+
+	public static final Unit KWH = base("kWh");
+	public static final Unit WH = define("Wh", 0.001, KWH);
+	public static final Unit MWH = define("MWh", 1000., KWH);
+
+	public static final Unit KG = base("kg");
+	public static final Unit G = define("g", 0.001, KG);
+	public static final Unit T = define("T", 1000., KG);
+
+	public static final Unit M = base("m");
+	public static final Unit MM = define("mm", 0.001, M);
+	public static final Unit CM = define("cm", 0.01, M);
+	public static final Unit KM = define("km", 1000., M);
+
+	private final int id;
+	private final String symbol;
+	private final int dimension;
+	private final double factor;
+
+	private Unit(int id, String symbol, int dimension, double factor) {
+		this.id = id;
+		this.symbol = symbol;
+		this.dimension = dimension;
+		this.factor = factor;
+	}
+
+	/**
+	 * @return The unit of this symbol, which must have been registered by
+	 *         {@link #base} or {@link #define} first
+	 */
+	public static Unit of(String symbol) {
+		final Unit unit = UNITS.get(symbol);
+		if (unit == null) {
+			throw new IllegalArgumentException("Unknown unit: " + symbol);
+		}
+		return unit;
+	}
+
+	/** @return A new base unit of a dimension of its own, or the existing one of this symbol */
+	public static synchronized Unit base(String symbol) {
+		final Unit existing = UNITS.get(symbol);
+		if (existing != null) {
+			return existing;
+		}
+		final int id = nextId++;
+		final Unit unit = new Unit(id, symbol, id, 1.);
+		UNITS.put(symbol, unit);
+		return unit;
+	}
+
+	/** @return A new unit worth the given factor of the given unit */
+	public static synchronized Unit define(String symbol, double factor, Unit unit) {
+		if (UNITS.containsKey(symbol)) {
+			throw new IllegalArgumentException("Unit already defined: " + symbol);
+		}
+		final Unit defined = new Unit(nextId++, symbol, unit.dimension, factor * unit.factor);
+		UNITS.put(symbol, defined);
+		return defined;
+	}
+
+	public int id() {
+		return id;
+	}
+
+	/** @return The id of the base unit of the dimension of this unit */
+	public int dimension() {
+		return dimension;
+	}
+
+	public boolean isCompatible(Unit other) {
+		return dimension == other.dimension;
+	}
+
+	/** @return The value in this unit expressed in the base unit of its dimension */
+	public double toBase(double value) {
+		return value * factor;
+	}
+
+	/** @return What to multiply a value in this unit by to express it in the target unit */
+	public double factorTo(Unit target) {
+		if (id == target.id) {
+			return 1.;
+		}
+		if (!isCompatible(target)) {
+			throw new IllegalArgumentException("Cannot convert " + symbol + " into " + target.symbol);
+		}
+		return factor / target.factor;
+	}
+
+	@Override
+	public int hashCode() {
+		return symbol.hashCode();
+	}
+
+	@Override
+	public boolean equals(Object o) {
+		return this == o;
+	}
+
+	@Override
+	public String toString() {
+		return symbol;
+	}
+
+}
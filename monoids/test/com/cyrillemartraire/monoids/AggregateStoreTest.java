@@ -0,0 +1,594 @@
+package com.cyrillemartraire.monoids;
+
+import static com.cyrillemartraire.monoids.EnvironmentalImpactTest.CertifiedAmount.certified;
+import static com.cyrillemartraire.monoids.EnvironmentalImpactTest.CertifiedAmount.uncertified;
+import static com.cyrillemartraire.monoids.EnvironmentalImpactTest.EnvironmentalImpact.singleSupplier;
+import static java.util.Arrays.asList;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.PriorityQueue;
+import java.util.function.BinaryOperator;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import com.cyrillemartraire.monoids.BinaryCodecTest.BinaryCodec;
+import com.cyrillemartraire.monoids.EnvironmentalImpactTest.EnvironmentalImpact;
+import com.cyrillemartraire.monoids.HistogramTest.Histogram;
+import com.cyrillemartraire.monoids.NestedMonoidMapTest.Monoid;
+
+public class AggregateStoreTest {
+
+	private static final Histogram EMPTY = Histogram.empty(10);
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	@Test
+	public void segmentsAreMergedOnRead() throws Exception {
+		final AggregateStore<Histogram> store = AggregateStore.open(folder.getRoot().toPath(), Histogram.class);
+		store.write(partials(asList("2026-10-01", "pizza"), EMPTY.withPoints(12, 45), asList("2026-10-01", "calzone"),
+				EMPTY.withPoints(99)));
+		store.write(partials(asList("2026-10-01", "pizza"), EMPTY.withPoints(46), asList("2026-10-02", "pizza"),
+				EMPTY.withPoints(3)));
+		final Map<List<String>, Histogram> all = store.read();
+		assertEquals(3, all.size());
+		assertEquals(EMPTY.withPoints(12, 45, 46), all.get(asList("2026-10-01", "pizza")));
+		assertEquals(EMPTY.withPoints(99), all.get(asList("2026-10-01", "calzone")));
+		assertEquals(EMPTY.withPoints(3), all.get(asList("2026-10-02", "pizza")));
+
+		// restarting a job just reopens the store
+		assertEquals(all, AggregateStore.open(folder.getRoot().toPath(), Histogram.class).read());
+	}
+
+	@Test
+	public void compactionIsJustAdd() throws Exception {
+		final AggregateStore<Histogram> store = AggregateStore.open(folder.getRoot().toPath(), Histogram.class);
+		for (int day = 1; day <= 5; day++) {
+			store.write(partials(asList("pizza"), EMPTY.withPoints(10 * day)));
+		}
+		final Map<List<String>, Histogram> before = store.read();
+		assertEquals(5, store.segmentCount());
+		store.compact();
+		assertEquals(1, store.segmentCount());
+		assertEquals(before, store.read());
+
+		store.write(partials(asList("pizza"), EMPTY.withPoints(99)));
+		assertEquals(EMPTY.withPoints(10, 20, 30, 40, 50, 99), store.read().get(asList("pizza")));
+	}
+
+	@Test
+	public void crashDuringCompactionDoesNotCountTwice() throws Exception {
+		final Path directory = folder.getRoot().toPath();
+		final AggregateStore<Histogram> store = AggregateStore.open(directory, Histogram.class);
+		store.write(partials(asList("pizza"), EMPTY.withPoints(12)));
+		store.write(partials(asList("pizza"), EMPTY.withPoints(34)));
+		final Path backup = folder.newFolder("backup").toPath();
+		final List<Path> segments = store.liveSegments();
+		for (Path segment : segments) {
+			Files.copy(segment, backup.resolve(segment.getFileName()));
+		}
+		store.compact();
+
+		// as if the process died after the compacted segment, before deleting the old ones
+		for (Path segment : segments) {
+			Files.copy(backup.resolve(segment.getFileName()), segment);
+		}
+		Files.write(directory.resolve("segment-0000000003-0000000003.agg.tmp"), new byte[] { 1, 2, 3 });
+		assertEquals(1, store.segmentCount());
+		assertEquals(EMPTY.withPoints(12, 34), store.read().get(asList("pizza")));
+	}
+
+	@Test
+	public void onlyTheWidestOfNestedCompactionsIsLive() throws Exception {
+		final Path directory = folder.getRoot().toPath();
+		final AggregateStore<Histogram> store = AggregateStore.open(directory, Histogram.class);
+		for (String name : asList("0000000001-0000000002", "0000000001-0000000004", "0000000003-0000000003",
+				"0000000003-0000000004", "0000000005-0000000005")) {
+			Files.write(directory.resolve("segment-" + name + ".agg"), new byte[0]);
+		}
+		assertEquals(asList(directory.resolve("segment-0000000001-0000000004.agg"),
+				directory.resolve("segment-0000000005-0000000005.agg")), store.liveSegments());
+	}
+
+	@Test
+	public void segmentsLargerThanTheirWindow() throws Exception {
+		final Path directory = folder.getRoot().toPath();
+		final AggregateStore<Histogram> store = AggregateStore.open(directory, Histogram.class,
+				(a, b) -> a.append(b), 16);
+		final Map<List<String>, Histogram> expected = new HashMap<>();
+		for (int write = 0; write < 3; write++) {
+			final Map<List<String>, Histogram> partials = new HashMap<>();
+			for (int i = 0; i < 200; i++) {
+				// a window of a few bytes maps each entry on its own, some many times larger
+				final Histogram value = i % 50 == 0 ? Histogram.empty(100).withPoints(i % 100, write)
+						: EMPTY.withPoints(i % 10, write);
+				partials.put(asList("day-" + i % 7, "product-" + i), value);
+				expected.merge(asList("day-" + i % 7, "product-" + i), value, Histogram::append);
+			}
+			store.write(partials);
+		}
+		assertEquals(expected, store.read());
+		store.compact();
+		assertEquals(1, store.segmentCount());
+		assertEquals(expected, store.read());
+		assertEquals(expected, AggregateStore.open(directory, Histogram.class).read());
+	}
+
+	@Test
+	public void staleTemporaryFilesAreDeletedOnOpen() throws Exception {
+		final Path directory = folder.getRoot().toPath();
+		final Path stale = Files.write(directory.resolve("segment-0000000001-0000000001.agg.tmp"), new byte[] { 1 });
+		AggregateStore.open(directory, Histogram.class);
+		assertFalse(Files.exists(stale));
+	}
+
+	@Test
+	public void corruptSegmentsAreRejectedClearly() throws Exception {
+		final Path directory = folder.getRoot().toPath();
+		final AggregateStore<Histogram> store = AggregateStore.open(directory, Histogram.class);
+		store.write(partials(asList("pizza"), EMPTY.withPoints(12), asList("calzone"), EMPTY.withPoints(34)));
+		final Path segment = store.liveSegments().get(0);
+		final byte[] bytes = Files.readAllBytes(segment);
+		for (int length : new int[] { 0, 1, bytes.length / 2, bytes.length - 1 }) {
+			Files.write(segment, Arrays.copyOf(bytes, length));
+			try {
+				store.read();
+				fail("Read a segment truncated to " + length + " bytes");
+			} catch (IllegalArgumentException expected) {
+				assertTrue(expected.getMessage(), expected.getMessage().contains(segment.toString()));
+			}
+		}
+	}
+
+	@Test
+	public void anyAssociativeAdd() throws Exception {
+		final AggregateStore<EnvironmentalImpact> store = AggregateStore.open(folder.getRoot().toPath(),
+				EnvironmentalImpact.class, EnvironmentalImpact::add);
+		final EnvironmentalImpact dough = singleSupplier(uncertified(5, "kWh", 5.), uncertified(0.5, "T", 1.));
+		final EnvironmentalImpact cooking = singleSupplier(certified(1, "kWh", 0.3), certified(1, "T", 0.25));
+		store.write(partials(asList("margherita"), dough));
+		store.write(partials(asList("margherita"), cooking));
+		store.compact();
+		assertEquals(dough.add(cooking), store.read().get(asList("margherita")));
+	}
+
+	@SuppressWarnings("unchecked")
+	private static <T> Map<List<String>, T> partials(Object... keysAndValues) {
+		final Map<List<String>, T> partials = new LinkedHashMap<>();
+		for (int i = 0; i < keysAndValues.length; i += 2) {
+			partials.put((List<String>) keysAndValues[i], (T) keysAndValues[i + 1]);
+		}
+		return partials;
+	}
+
+	/**
+	 * A persistent store of partial aggregates keyed by a tuple of dimension
+	 * values (e.g. day and product), so that a roll-up can be resumed instead
+	 * of restarted. Each write adds a new immutable segment file, renamed into
+	 * place only once complete, with its entries sorted by key. Reading merges
+	 * the segments as sorted runs and adds the values of each key, in the
+	 * order they were written. Since adding is associative, compacting is just
+	 * the same merge written back as one segment, streamed with one entry per
+	 * segment in memory. Segments are mapped in memory by windows, so they
+	 * may be larger than a mapping can be.
+	 * <p>
+	 * Each segment is named after the range of writes it covers, so a compacted
+	 * segment supersedes the ones it was made of even if the process died
+	 * before deleting them. Meant for a single writer at a time.
+	 */
+	public static final class AggregateStore<T> {
+
+		private static final Pattern SEGMENT = Pattern.compile("segment-(\\d{10})-(\\d{10})\\.agg");
+		private static final String TEMPORARY = ".tmp";
+		// the most of a segment mapped at once
+		private static final int WINDOW = 64 << 20;
+
+		private final Path directory;
+		private final Class<T> type;
+		private final BinaryOperator<T> add;
+		private final int window;
+
+		public static <T extends Monoid<T>> AggregateStore<T> open(Path directory, Class<T> type) throws IOException {
+			return open(directory, type, (a, b) -> a.append(b));
+		}
+
+		public static <T> AggregateStore<T> open(Path directory, Class<T> type, BinaryOperator<T> add)
+				throws IOException {
+			return open(directory, type, add, WINDOW);
+		}
+
+		/** Opens the store, deleting the segments left half-written by a crash */
+		static <T> AggregateStore<T> open(Path directory, Class<T> type, BinaryOperator<T> add, int window)
+				throws IOException {
+			Files.createDirectories(directory);
+			try (DirectoryStream<Path> files = Files.newDirectoryStream(directory, "segment-*.agg" + TEMPORARY)) {
+				for (Path stale : files) {
+					Files.delete(stale);
+				}
+			}
+			return new AggregateStore<>(directory, type, add, window);
+		}
+
+		private AggregateStore(Path directory, Class<T> type, BinaryOperator<T> add, int window) {
+			this.directory = directory;
+			this.type = type;
+			this.add = add;
+			this.window = window;
+		}
+
+		/** Writes the partial aggregates as a new segment, all or nothing */
+		public void write(Map<List<String>, T> partials) throws IOException {
+			final List<Map.Entry<List<String>, T>> sorted = new ArrayList<>(partials.entrySet());
+			Collections.sort(sorted, (a, b) -> compareKeys(a.getKey(), b.getKey()));
+			final long next = lastWrite() + 1;
+			writeSegment(next, next, sorted.iterator());
+		}
+
+		/** @return the sum of the values of each key over all the segments */
+		public Map<List<String>, T> read() throws IOException {
+			final Map<List<String>, T> all = new HashMap<>();
+			try (Merge merge = new Merge(live())) {
+				while (merge.hasNext()) {
+					final Map.Entry<List<String>, T> entry = merge.next();
+					all.put(entry.getKey(), entry.getValue());
+				}
+			}
+			return all;
+		}
+
+		/** Replaces all the segments with a single one of the same sums */
+		public void compact() throws IOException {
+			final List<Segment> segments = live();
+			if (segments.size() <= 1) {
+				return;
+			}
+			try (Merge merge = new Merge(segments)) {
+				writeSegment(segments.get(0).from, segments.get(segments.size() - 1).to, merge);
+			}
+			for (Segment superseded : segments) {
+				Files.delete(superseded.path);
+			}
+			syncDirectory();
+		}
+
+		int segmentCount() throws IOException {
+			return live().size();
+		}
+
+		/** @return the segments not superseded by a compacted one, in order of writes */
+		List<Path> liveSegments() throws IOException {
+			final List<Path> live = new ArrayList<>();
+			for (Segment segment : live()) {
+				live.add(segment.path);
+			}
+			return live;
+		}
+
+		/**
+		 * Sorted by first write then widest first, a segment is superseded
+		 * exactly when an earlier one reaches as far, hence a single pass
+		 */
+		private List<Segment> live() throws IOException {
+			final List<Segment> segments = allSegments();
+			Collections.sort(segments,
+					(a, b) -> a.from != b.from ? Long.compare(a.from, b.from) : Long.compare(b.to, a.to));
+			final List<Segment> live = new ArrayList<>();
+			long reached = 0;
+			for (Segment segment : segments) {
+				if (segment.to > reached) {
+					live.add(segment);
+					reached = segment.to;
+				}
+			}
+			return live;
+		}
+
+		private List<Segment> allSegments() throws IOException {
+			final List<Segment> segments = new ArrayList<>();
+			try (DirectoryStream<Path> files = Files.newDirectoryStream(directory, "segment-*.agg")) {
+				for (Path file : files) {
+					final Matcher matcher = SEGMENT.matcher(file.getFileName().toString());
+					if (matcher.matches()) {
+						segments.add(new Segment(file, Long.parseLong(matcher.group(1)), Long.parseLong(matcher.group(2))));
+					}
+				}
+			}
+			return segments;
+		}
+
+		private long lastWrite() throws IOException {
+			long last = 0;
+			for (Segment segment : allSegments()) {
+				last = Math.max(last, segment.to);
+			}
+			return last;
+		}
+
+		/**
+		 * Makes the renames and deletions in the directory durable, as syncing
+		 * a file does not sync its directory entry; Windows cannot open a
+		 * directory, but its renames are durable already
+		 */
+		private void syncDirectory() throws IOException {
+			if (System.getProperty("os.name").startsWith("Windows")) {
+				return;
+			}
+			try (FileChannel channel = FileChannel.open(directory, StandardOpenOption.READ)) {
+				channel.force(true);
+			}
+		}
+
+		/** Keys in the order of their dimensions, each in natural order */
+		private static int compareKeys(List<String> a, List<String> b) {
+			for (int i = 0; i < Math.min(a.size(), b.size()); i++) {
+				final int compare = a.get(i).compareTo(b.get(i));
+				if (compare != 0) {
+					return compare;
+				}
+			}
+			return Integer.compare(a.size(), b.size());
+		}
+
+		/**
+		 * Writes the version, then each entry, already sorted by key, as its
+		 * size and bytes, then a zero size and the count of entries, which
+		 * tells a complete segment from a truncated one
+		 */
+		private void writeSegment(long from, long to, Iterator<Map.Entry<List<String>, T>> entries)
+				throws IOException {
+			final Path segment = directory.resolve(String.format("segment-%010d-%010d.agg", from, to));
+			final Path temporary = directory.resolve(segment.getFileName() + TEMPORARY);
+			try (FileChannel channel = FileChannel.open(temporary, StandardOpenOption.CREATE,
+					StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+				final OutputStream out = new BufferedOutputStream(Channels.newOutputStream(channel), 1 << 16);
+				out.write(BinaryCodec.VERSION);
+				long count = 0;
+				while (entries.hasNext()) {
+					final Map.Entry<List<String>, T> entry = entries.next();
+					final BinaryCodec.Output bytes = new BinaryCodec.Output();
+					bytes.writeVarLong(entry.getKey().size());
+					for (String dimension : entry.getKey()) {
+						bytes.writeString(dimension);
+					}
+					BinaryCodec.writeTagged(bytes, entry.getValue());
+					final ByteBuffer encoded = bytes.toByteBuffer();
+					writeVarLong(out, encoded.remaining());
+					out.write(encoded.array(), 0, encoded.remaining());
+					count++;
+				}
+				writeVarLong(out, 0);
+				writeVarLong(out, count);
+				out.flush();
+				channel.force(true);
+			}
+			Files.move(temporary, segment, StandardCopyOption.ATOMIC_MOVE);
+			syncDirectory();
+		}
+
+		private static void writeVarLong(OutputStream out, long value) throws IOException {
+			while ((value & ~0x7FL) != 0) {
+				out.write((int) ((value & 0x7F) | 0x80));
+				value >>>= 7;
+			}
+			out.write((int) value);
+		}
+
+		/** A segment file and the range of writes it holds, parsed from its name */
+		private static final class Segment {
+			private final Path path;
+			private final long from;
+			private final long to;
+
+			Segment(Path path, long from, long to) {
+				this.path = path;
+				this.from = from;
+				this.to = to;
+			}
+		}
+
+		/**
+		 * The entries of several segments merged by key, each key once with the
+		 * sum of its values in the order of the segments
+		 */
+		private final class Merge implements Iterator<Map.Entry<List<String>, T>>, Closeable {
+			private final List<SegmentReader> readers = new ArrayList<>();
+			private final PriorityQueue<SegmentReader> heads = new PriorityQueue<>(
+					(a, b) -> {
+						final int compare = compareKeys(a.key, b.key);
+						return compare != 0 ? compare : Integer.compare(a.order, b.order);
+					});
+
+			Merge(List<Segment> segments) throws IOException {
+				try {
+					for (Segment segment : segments) {
+						final SegmentReader reader = new SegmentReader(segment.path, readers.size());
+						readers.add(reader);
+						if (reader.key != null) {
+							heads.add(reader);
+						}
+					}
+				} catch (IOException | RuntimeException e) {
+					close();
+					throw e;
+				}
+			}
+
+			@Override
+			public boolean hasNext() {
+				return !heads.isEmpty();
+			}
+
+			@Override
+			public Map.Entry<List<String>, T> next() {
+				if (heads.isEmpty()) {
+					throw new NoSuchElementException();
+				}
+				try {
+					final SegmentReader first = heads.poll();
+					final List<String> key = first.key;
+					T sum = first.value;
+					advance(first);
+					while (!heads.isEmpty() && compareKeys(heads.peek().key, key) == 0) {
+						final SegmentReader same = heads.poll();
+						sum = add.apply(sum, same.value);
+						advance(same);
+					}
+					return new AbstractMap.SimpleImmutableEntry<>(key, sum);
+				} catch (IOException e) {
+					throw new UncheckedIOException(e);
+				}
+			}
+
+			private void advance(SegmentReader reader) throws IOException {
+				reader.next();
+				if (reader.key != null) {
+					heads.add(reader);
+				}
+			}
+
+			@Override
+			public void close() throws IOException {
+				for (SegmentReader reader : readers) {
+					reader.close();
+				}
+			}
+		}
+
+		/** Reads the entries of a segment one by one, mapping it by windows */
+		private final class SegmentReader implements Closeable {
+			private final Path path;
+			private final int order;
+			private final FileChannel channel;
+			private final long size;
+			private MappedByteBuffer mapped;
+			private long mappedFrom;
+			private long position;
+			private long count;
+			// the current entry, or a null key past the last one
+			private List<String> key;
+			private T value;
+
+			SegmentReader(Path path, int order) throws IOException {
+				this.path = path;
+				this.order = order;
+				this.channel = FileChannel.open(path, StandardOpenOption.READ);
+				try {
+					this.size = channel.size();
+					if (size == 0) {
+						throw new IllegalArgumentException("Empty segment " + path);
+					}
+					final byte version = map(0, 1).get();
+					if (version != BinaryCodec.VERSION) {
+						throw new IllegalArgumentException("Unsupported version " + version + " in " + path);
+					}
+					position = 1;
+					next();
+				} catch (IOException | RuntimeException e) {
+					channel.close();
+					throw e;
+				}
+			}
+
+			void next() throws IOException {
+				final long length = readVarLong();
+				if (length == 0) {
+					final long expected = readVarLong();
+					if (expected != count || position != size) {
+						throw corrupt("Bad end of segment with " + count + " entries");
+					}
+					key = null;
+					value = null;
+					return;
+				}
+				if (length > size - position || length > Integer.MAX_VALUE) {
+					throw corrupt("Truncated entry of " + length + " bytes");
+				}
+				final ByteBuffer in = map(position, (int) length);
+				final int start = in.position();
+				try {
+					final String[] dimensions = new String[BinaryCodec.readVarInt(in)];
+					for (int d = 0; d < dimensions.length; d++) {
+						dimensions[d] = BinaryCodec.readString(in);
+					}
+					key = Collections.unmodifiableList(asList(dimensions));
+					value = type.cast(BinaryCodec.readTagged(in));
+				} catch (BufferUnderflowException e) {
+					throw corrupt("Truncated entry of " + length + " bytes");
+				}
+				if (in.position() - start != length) {
+					throw corrupt("Entry not of its size of " + length + " bytes");
+				}
+				position += length;
+				count++;
+			}
+
+			private long readVarLong() throws IOException {
+				if (position == size) {
+					throw corrupt("Truncated segment");
+				}
+				final ByteBuffer in = map(position, (int) Math.min(10, size - position));
+				final int start = in.position();
+				final long value;
+				try {
+					value = BinaryCodec.readVarLong(in);
+				} catch (BufferUnderflowException e) {
+					throw corrupt("Truncated segment");
+				}
+				position += in.position() - start;
+				return value;
+			}
+
+			/** @return the window positioned at the given offset, with at least length bytes after */
+			private ByteBuffer map(long from, int length) throws IOException {
+				if (mapped == null || from < mappedFrom || from + length > mappedFrom + mapped.limit()) {
+					mappedFrom = from;
+					mapped = channel.map(FileChannel.MapMode.READ_ONLY, from,
+							Math.min(size - from, Math.max(window, length)));
+				}
+				mapped.position((int) (from - mappedFrom));
+				return mapped;
+			}
+
+			private IllegalArgumentException corrupt(String message) {
+				return new IllegalArgumentException(message + " at offset " + position + " of " + path);
+			}
+
+			@Override
+			public void close() throws IOException {
+				channel.close();
+			}
+		}
+	}
+}
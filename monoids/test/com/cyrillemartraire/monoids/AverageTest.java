@@ -3,8 +3,13 @@ package com.cyrillemartraire.monoids;
 import static java.util.Arrays.stream;
 import static org.junit.Assert.assertEquals;
 
+import java.nio.ByteBuffer;
+
 import org.junit.Test;
 
+import com.cyrillemartraire.monoids.BinaryCodecTest.BinaryCodec;
+import com.cyrillemartraire.monoids.NestedMonoidMapTest.Group;
+
 public class AverageTest {
 
 	@Test
@@ -29,8 +34,37 @@ public class AverageTest {
 		assertEquals(16. / 5., combinedAverages.average(), 0.0001);
 	}
 
+	@Test
+	public void accumulatorInPlace() throws Exception {
+		final Average.Accumulator acc = new Average.Accumulator();
+		acc.addInPlace(1).addInPlace(2, 3).addInPlace(Average.of(4, 6));
+		assertEquals(Average.of(1, 2, 3).add(Average.of(4, 6)), acc.result());
+	}
+
+	@Test
+	public void longAverageDoesNotOverflow() throws Exception {
+		final LongAverage big = LongAverage.of(Integer.MAX_VALUE, Integer.MAX_VALUE);
+		assertEquals(Integer.MAX_VALUE, big.add(LongAverage.NEUTRAL).average(), 0.0001);
+		assertEquals(LongAverage.of(1, 2, 3, 4, 6), LongAverage.of(1, 2, 3).add(LongAverage.of(4, 6)));
+	}
+
+	@Test
+	public void combiningColumnsOfAverages() throws Exception {
+		final long[] counts = { 3, 0 };
+		final long[] sums = { 6, 0 };
+		LongAverage.combine(counts, sums, new long[] { 2, 1 }, new long[] { 10, 7 });
+		assertEquals(LongAverage.of(1, 2, 3, 4, 6), LongAverage.at(counts, sums, 0));
+		assertEquals(LongAverage.of(7), LongAverage.at(counts, sums, 1));
+
+		final long[] doubleCounts = { 1 };
+		final double[] doubleSums = { 0.5 };
+		DoubleAverage.combine(doubleCounts, doubleSums, new long[] { 3 }, new double[] { 1.5 });
+		assertEquals(DoubleAverage.of(0.5, 0.25, 0.5, 0.75), DoubleAverage.at(doubleCounts, doubleSums, 0));
+		assertEquals(0.5, DoubleAverage.of(new double[] { 0.25, 0.5, 0.75 }).average(), 0.0001);
+	}
+
 	/** An average that composes well */
-	public static class Average {
+	public static class Average implements Group<Average> {
 
 		private final int count;
 		private final int sum;
@@ -58,6 +92,60 @@ public class AverageTest {
 			return new Average(count + other.count, sum + other.sum);
 		}
 
+		@Override
+		public Average append(Average other) {
+			return add(other);
+		}
+
+		@Override
+		public Average neutral() {
+			return NEUTRAL;
+		}
+
+		/** @return the average to add to retract this one */
+		@Override
+		public Average inverse() {
+			return new Average(-count, -sum);
+		}
+
+		void writeTo(BinaryCodec.Output out) {
+			out.writeSignedVarLong(count).writeSignedVarLong(sum);
+		}
+
+		static Average readFrom(ByteBuffer in) {
+			return new Average(BinaryCodec.readSignedVarInt(in), BinaryCodec.readSignedVarInt(in));
+		}
+
+		/** A mutable companion to fold many values without allocating */
+		public static final class Accumulator {
+			private int count;
+			private int sum;
+
+			public Accumulator addInPlace(int value) {
+				count++;
+				sum += value;
+				return this;
+			}
+
+			public Accumulator addInPlace(int... values) {
+				for (int value : values) {
+					count++;
+					sum += value;
+				}
+				return this;
+			}
+
+			public Accumulator addInPlace(Average other) {
+				count += other.count;
+				sum += other.sum;
+				return this;
+			}
+
+			public Average result() {
+				return new Average(count, sum);
+			}
+		}
+
 		@Override
 		public int hashCode() {
 			return 31 + count ^ sum;
@@ -81,4 +169,203 @@ public class AverageTest {
 		}
 
 	}
+
+	/**
+	 * An average over {@code long} values, with sum and count that do not
+	 * overflow for any realistic sample size. The static kernels work on
+	 * columns of counts and sums, one average per index, without allocating.
+	 */
+	public static class LongAverage {
+
+		private final long count;
+		private final long sum;
+
+		public static final LongAverage NEUTRAL = new LongAverage(0, 0);
+
+		public static final LongAverage of(long... values) {
+			return new LongAverage(values.length, sum(values, 0, values.length));
+		}
+
+		public static final LongAverage at(long[] counts, long[] sums, int index) {
+			return new LongAverage(counts[index], sums[index]);
+		}
+
+		/** @return the sum of the values in [from, to), as a plain vectorizable loop */
+		public static long sum(long[] values, int from, int to) {
+			long sum = 0;
+			for (int i = from; i < to; i++) {
+				sum += values[i];
+			}
+			return sum;
+		}
+
+		/** Adds each average of the other columns into the averages at same index */
+		public static void combine(long[] counts, long[] sums, long[] otherCounts, long[] otherSums) {
+			for (int i = 0; i < counts.length; i++) {
+				counts[i] += otherCounts[i];
+			}
+			for (int i = 0; i < sums.length; i++) {
+				sums[i] += otherSums[i];
+			}
+		}
+
+		private LongAverage(long count, long sum) {
+			this.count = count;
+			this.sum = sum;
+		}
+
+		void writeTo(BinaryCodec.Output out) {
+			out.writeSignedVarLong(count).writeSignedVarLong(sum);
+		}
+
+		static LongAverage readFrom(ByteBuffer in) {
+			return new LongAverage(BinaryCodec.readSignedVarLong(in), BinaryCodec.readSignedVarLong(in));
+		}
+
+		public double average() {
+			return (double) sum / count;
+		}
+
+		public long count() {
+			return count;
+		}
+
+		public long sum() {
+			return sum;
+		}
+
+		public LongAverage add(LongAverage other) {
+			return new LongAverage(count + other.count, sum + other.sum);
+		}
+
+		/** A mutable companion to fold many values without allocating */
+		public static final class Accumulator {
+			private long count;
+			private long sum;
+
+			public Accumulator addInPlace(long value) {
+				count++;
+				sum += value;
+				return this;
+			}
+
+			public Accumulator addInPlace(LongAverage other) {
+				count += other.count;
+				sum += other.sum;
+				return this;
+			}
+
+			public LongAverage result() {
+				return new LongAverage(count, sum);
+			}
+		}
+
+		@Override
+		public int hashCode() {
+			return 31 + Long.hashCode(count) ^ Long.hashCode(sum);
+		}
+
+		@Override
+		public boolean equals(Object obj) {
+			if (this == obj) {
+				return true;
+			}
+			if (!(obj instanceof LongAverage)) {
+				return false;
+			}
+			LongAverage other = (LongAverage) obj;
+			return count == other.count && sum == other.sum;
+		}
+
+		@Override
+		public String toString() {
+			return " " + sum + " / " + count + " = " + average();
+		}
+	}
+
+	/**
+	 * An average over {@code double} values, with the same column kernels as
+	 * {@link LongAverage}
+	 */
+	public static class DoubleAverage {
+
+		private final long count;
+		private final double sum;
+
+		public static final DoubleAverage NEUTRAL = new DoubleAverage(0, 0.);
+
+		public static final DoubleAverage of(double... values) {
+			return new DoubleAverage(values.length, sum(values, 0, values.length));
+		}
+
+		public static final DoubleAverage at(long[] counts, double[] sums, int index) {
+			return new DoubleAverage(counts[index], sums[index]);
+		}
+
+		/** @return the sum of the values in [from, to), as a plain vectorizable loop */
+		public static double sum(double[] values, int from, int to) {
+			double sum = 0.;
+			for (int i = from; i < to; i++) {
+				sum += values[i];
+			}
+			return sum;
+		}
+
+		/** Adds each average of the other columns into the averages at same index */
+		public static void combine(long[] counts, double[] sums, long[] otherCounts, double[] otherSums) {
+			for (int i = 0; i < counts.length; i++) {
+				counts[i] += otherCounts[i];
+			}
+			for (int i = 0; i < sums.length; i++) {
+				sums[i] += otherSums[i];
+			}
+		}
+
+		private DoubleAverage(long count, double sum) {
+			this.count = count;
+			this.sum = sum;
+		}
+
+		void writeTo(BinaryCodec.Output out) {
+			out.writeSignedVarLong(count).writeDouble(sum);
+		}
+
+		static DoubleAverage readFrom(ByteBuffer in) {
+			return new DoubleAverage(BinaryCodec.readSignedVarLong(in), BinaryCodec.readDouble(in));
+		}
+
+		public double average() {
+			return sum / count;
+		}
+
+		public long count() {
+			return count;
+		}
+
+		public DoubleAverage add(DoubleAverage other) {
+			return new DoubleAverage(count + other.count, sum + other.sum);
+		}
+
+		@Override
+		public int hashCode() {
+			return 31 + Long.hashCode(count) ^ Double.hashCode(sum);
+		}
+
+		@Override
+		public boolean equals(Object obj) {
+			if (this == obj) {
+				return true;
+			}
+			if (!(obj instanceof DoubleAverage)) {
+				return false;
+			}
+			DoubleAverage other = (DoubleAverage) obj;
+			return count == other.count && Double.doubleToLongBits(sum) == Double.doubleToLongBits(other.sum);
+		}
+
+		@Override
+		public String toString() {
+			return " " + sum + " / " + count + " = " + average();
+		}
+	}
 }
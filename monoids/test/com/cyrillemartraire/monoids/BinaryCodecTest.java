@@ -0,0 +1,548 @@
+package com.cyrillemartraire.monoids;
+
+import static com.cyrillemartraire.monoids.EnvironmentalImpactTest.CertifiedAmount.certified;
+import static com.cyrillemartraire.monoids.EnvironmentalImpactTest.CertifiedAmount.uncertified;
+import static com.cyrillemartraire.monoids.EnvironmentalImpactTest.EnvironmentalImpact.singleSupplier;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.time.LocalDate;
+import java.util.Arrays;
+import java.util.Currency;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.junit.Test;
+
+import com.cyrillemartraire.monoids.AverageTest.Average;
+import com.cyrillemartraire.monoids.AverageTest.DoubleAverage;
+import com.cyrillemartraire.monoids.AverageTest.LongAverage;
+import com.cyrillemartraire.monoids.CashflowSequenceTest.Cashflow;
+import com.cyrillemartraire.monoids.CashflowSequenceTest.CashflowSequence;
+import com.cyrillemartraire.monoids.EnvironmentalImpactTest.Amount;
+import com.cyrillemartraire.monoids.EnvironmentalImpactTest.EnvironmentalImpact;
+import com.cyrillemartraire.monoids.HistogramTest.Histogram;
+import com.cyrillemartraire.monoids.HyperLogLogTest.HyperLogLog;
+import com.cyrillemartraire.monoids.LogLinearHistogramTest.LogLinearHistogram;
+import com.cyrillemartraire.monoids.NestedMonoidMapTest.AndBoolean;
+import com.cyrillemartraire.monoids.NestedMonoidMapTest.ConcatenativeString;
+import com.cyrillemartraire.monoids.NestedMonoidMapTest.LastWinsString;
+import com.cyrillemartraire.monoids.NestedMonoidMapTest.MinNumber;
+import com.cyrillemartraire.monoids.NestedMonoidMapTest.Monoid;
+import com.cyrillemartraire.monoids.NestedMonoidMapTest.NestedMonoidMap;
+import com.cyrillemartraire.monoids.QuantileSketchTest.QuantileSketch;
+import com.cyrillemartraire.monoids.RatioTest.Ratio;
+import com.cyrillemartraire.monoids.RatioTest.Rational;
+
+public class BinaryCodecTest {
+
+	private static final Currency EUR = Currency.getInstance("EUR");
+	private static final Currency USD = Currency.getInstance("USD");
+
+	@Test
+	public void histogramRunLengthEncoded() throws Exception {
+		final Histogram h = Histogram.empty(100).withPoints(12, 12, 13, 99);
+		final ByteBuffer bytes = BinaryCodec.encode(h);
+		assertEquals(h, BinaryCodec.decode(bytes, Histogram.class));
+		// version, tag, size, then 5 runs of 2 bytes each
+		assertEquals(13, bytes.limit());
+	}
+
+	@Test
+	public void averageRoundTrip() throws Exception {
+		final Average average = Average.of(1, 2, 3, 1000);
+		assertEquals(average, BinaryCodec.decode(BinaryCodec.encode(average), Average.class));
+		assertEquals(average.inverse(), BinaryCodec.decode(BinaryCodec.encode(average.inverse()), Average.class));
+	}
+
+	@Test
+	public void cashflowsWithDeltaEncodedDates() throws Exception {
+		final LocalDate start = LocalDate.of(2026, 1, 1);
+		final Cashflow[] flows = new Cashflow[24];
+		for (int i = 0; i < flows.length; i++) {
+			flows[i] = new Cashflow(100. + i, i % 2 == 0 ? EUR : USD, start.plusMonths(i));
+		}
+		final CashflowSequence sequence = new CashflowSequence(flows);
+		final ByteBuffer bytes = BinaryCodec.encode(sequence);
+		assertEquals(sequence, BinaryCodec.decode(bytes, CashflowSequence.class));
+		// about 10 bytes per cashflow: an amount, a currency index and a small day delta
+		assertTrue(bytes.limit() < 11 * flows.length);
+		assertEquals(CashflowSequence.EMPTY, BinaryCodec.decode(BinaryCodec.encode(CashflowSequence.EMPTY),
+				CashflowSequence.class));
+	}
+
+	@Test
+	public void environmentalImpactRoundTrip() throws Exception {
+		final EnvironmentalImpact impact = singleSupplier(certified(1, "kWh", 0.3), uncertified(0.5, "T", 1.))
+				.add(singleSupplier(uncertified(500, "Wh", 1.), certified(20, "kg", 0.1)));
+		assertEquals(impact, BinaryCodec.decode(BinaryCodec.encode(impact), EnvironmentalImpact.class));
+	}
+
+	@Test
+	public void nestedMapsAreTypeTagged() throws Exception {
+		final Map<String, Monoid<?>> inner = new HashMap<>();
+		inner.put("latency", Histogram.empty(10).withPoints(5, 42));
+		inner.put("size", Average.of(3, 4));
+		final Map<String, Monoid<?>> map = new HashMap<>();
+		map.put("COLOR", new LastWinsString("RED"));
+		map.put("TIMEOUT", new MinNumber(-25));
+		map.put("ENABLE", new AndBoolean(false));
+		map.put("USER", new ConcatenativeString("Cyrille"));
+		map.put("stats", new NestedMonoidMap(inner));
+		final NestedMonoidMap config = new NestedMonoidMap(map);
+		assertEquals(config, BinaryCodec.decode(BinaryCodec.encode(config), NestedMonoidMap.class));
+	}
+
+	@Test
+	public void decodesInPlaceFromAnyBuffer() throws Exception {
+		final Average average = Average.of(4, 6);
+		final Histogram histogram = Histogram.empty(10).withPoints(41);
+		final ByteBuffer first = BinaryCodec.encode(average);
+		final ByteBuffer second = BinaryCodec.encode(histogram);
+		final ByteBuffer direct = ByteBuffer.allocateDirect(first.remaining() + second.remaining());
+		direct.put(first).put(second).flip();
+		assertEquals(average, BinaryCodec.decode(direct));
+		assertEquals(histogram, BinaryCodec.decode(direct));
+		assertEquals(0, direct.remaining());
+	}
+
+	@Test
+	public void doublesAreBigEndianWhateverTheBufferOrder() throws Exception {
+		final DoubleAverage average = DoubleAverage.of(0.1, 2.5, -7.25);
+		final ByteBuffer bytes = BinaryCodec.encode(average).order(ByteOrder.LITTLE_ENDIAN);
+		assertEquals(average, BinaryCodec.decode(bytes, DoubleAverage.class));
+	}
+
+	@Test
+	public void sketchesRoundTrip() throws Exception {
+		final long[] latencyValues = new long[5000];
+		final double[] values = new double[5000];
+		final Object[] users = new Object[5000];
+		for (int i = 0; i < 5000; i++) {
+			latencyValues[i] = i * 17L;
+			values[i] = i % 997;
+			users[i] = "user-" + i;
+		}
+		final LogLinearHistogram latencies = LogLinearHistogram.empty(2).withValues(latencyValues);
+		final QuantileSketch quantiles = QuantileSketch.withK(32, values);
+		final HyperLogLog sparse = HyperLogLog.empty(12).with(Arrays.copyOf(users, 50));
+		final HyperLogLog dense = HyperLogLog.empty(12).with(users);
+		assertEquals(latencies, BinaryCodec.decode(BinaryCodec.encode(latencies), LogLinearHistogram.class));
+		assertEquals(quantiles, BinaryCodec.decode(BinaryCodec.encode(quantiles), QuantileSketch.class));
+		assertEquals(sparse, BinaryCodec.decode(BinaryCodec.encode(sparse), HyperLogLog.class));
+		assertEquals(dense, BinaryCodec.decode(BinaryCodec.encode(dense), HyperLogLog.class));
+	}
+
+	@Test
+	public void averagesRoundTrip() throws Exception {
+		final LongAverage longAverage = LongAverage.of(Long.MAX_VALUE / 2, -3, 12);
+		final DoubleAverage doubleAverage = DoubleAverage.of(0.1, 0.2);
+		assertEquals(longAverage, BinaryCodec.decode(BinaryCodec.encode(longAverage), LongAverage.class));
+		assertEquals(doubleAverage, BinaryCodec.decode(BinaryCodec.encode(doubleAverage), DoubleAverage.class));
+	}
+
+	@Test
+	public void ratiosRoundTrip() throws Exception {
+		final Rational small = new Rational(-10, 4);
+		final Rational big = new Rational(Long.MAX_VALUE, 3).multiply(new Rational(Long.MAX_VALUE, 7));
+		assertEquals(small, BinaryCodec.decode(BinaryCodec.encode(small), Rational.class));
+		assertEquals(big, BinaryCodec.decode(BinaryCodec.encode(big), Rational.class));
+
+		final Ratio traced = new Ratio(1, 2, "half").multiply(new Ratio(3, 4)).multiply(new Ratio(5, 6));
+		final Ratio decoded = BinaryCodec.decode(BinaryCodec.encode(traced), Ratio.class);
+		assertEquals(traced, decoded);
+		assertEquals(traced.trace(), decoded.trace());
+
+		Ratio squares = new Ratio(-1, 1, "minus one");
+		for (int i = 0; i < 40; i++) {
+			squares = squares.multiply(squares);
+		}
+		final ByteBuffer shared = BinaryCodec.encode(squares);
+		assertTrue(shared.remaining() < 40 * 4);
+		assertEquals(squares.trace(), BinaryCodec.decode(shared, Ratio.class).trace());
+
+		final TraceableRatioTest.Ratio ratio = new TraceableRatioTest.Ratio(6, 4);
+		assertEquals(ratio, BinaryCodec.decode(BinaryCodec.encode(ratio), TraceableRatioTest.Ratio.class));
+	}
+
+	@Test
+	public void measuresRoundTrip() throws Exception {
+		final Amount amount = new Amount(500, "Wh", 0.2);
+		assertEquals(amount, BinaryCodec.decode(BinaryCodec.encode(amount), Amount.class));
+		final Length length = new Length(3.5, Unit.KM);
+		assertEquals(length, BinaryCodec.decode(BinaryCodec.encode(length), Length.class));
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void unknownVersionIsRejected() throws Exception {
+		final ByteBuffer bytes = BinaryCodec.encode(Average.of(1));
+		bytes.put(0, (byte) 99);
+		BinaryCodec.decode(bytes);
+	}
+
+	@Test
+	public void malformedLengthsAreRejectedBeforeAllocating() throws Exception {
+		assertMalformed("Malformed input at 2: length 1000 with only 2 bytes left",
+				tagged(BinaryCodec.CONCATENATIVE_STRING).writeVarLong(1000).writeByte('a').writeByte('b'));
+		assertMalformed("Malformed input at 2: length 2147483647 over the limit",
+				tagged(BinaryCodec.HISTOGRAM).writeVarLong(Integer.MAX_VALUE).writeVarLong(1).writeVarLong(0));
+		assertMalformed("Malformed input at 2: significant digits 9",
+				tagged(BinaryCodec.LOG_LINEAR_HISTOGRAM).writeByte(9).writeVarLong(0));
+		assertMalformed("Malformed input at 3: length 4294967295 over the limit",
+				tagged(BinaryCodec.LOG_LINEAR_HISTOGRAM).writeByte(2).writeVarLong(0xFFFFFFFFL));
+		assertMalformed("Malformed input at 2: k of 0", tagged(BinaryCodec.QUANTILE_SKETCH).writeVarLong(0));
+		assertMalformed("Malformed input at 21: length 1000 over the limit of 64",
+				tagged(BinaryCodec.QUANTILE_SKETCH).writeVarLong(200).writeVarLong(0).writeDouble(0).writeDouble(0)
+						.writeVarLong(1000));
+		assertMalformed("Malformed input at 2: length 1000000 with only 0 bytes left",
+				tagged(BinaryCodec.CASHFLOW_SEQUENCE).writeVarLong(1_000_000));
+		assertMalformed("Malformed input at 16: currency 1 of 1", tagged(BinaryCodec.CASHFLOW_SEQUENCE).writeVarLong(1)
+				.writeString("EUR").writeVarLong(1).writeDouble(1.).writeVarLong(1).writeSignedVarLong(0));
+		assertMalformed("Malformed input at 1: unknown type tag 99", tagged(99));
+	}
+
+	@Test
+	public void truncatedInputIsRejectedWithItsOffset() throws Exception {
+		final ByteBuffer bytes = BinaryCodec.encode(Average.of(1000));
+		bytes.limit(bytes.limit() - 1);
+		try {
+			BinaryCodec.decode(bytes);
+			fail("Expected a truncated input to be rejected");
+		} catch (IllegalArgumentException expected) {
+			assertEquals("Malformed input at 4: truncated", expected.getMessage());
+		}
+	}
+
+	private static BinaryCodec.Output tagged(int tag) {
+		return new BinaryCodec.Output().writeByte(BinaryCodec.VERSION).writeByte(tag);
+	}
+
+	private static void assertMalformed(String message, BinaryCodec.Output out) {
+		try {
+			BinaryCodec.decode(out.toByteBuffer());
+			fail("Expected to be rejected: " + message);
+		} catch (IllegalArgumentException expected) {
+			assertTrue(expected.getMessage(), expected.getMessage().startsWith(message));
+		}
+	}
+
+	/**
+	 * A compact binary format for the monoids, to ship partial aggregates
+	 * between workers or store them in snapshots. Each value starts with a
+	 * version byte and a type tag; integers are varints (zigzag when they can
+	 * be negative) and doubles are 8 bytes, in big-endian order. Each monoid
+	 * writes and reads its own fields, and nested maps tag each of their
+	 * values.
+	 * <p>
+	 * Decoding reads straight from the buffer, heap, direct or mapped, from its
+	 * position and leaves the position after the value, so that several values
+	 * can be read in a row. Every length is checked against the bytes left and
+	 * the limits of its type before anything is allocated for it, and malformed
+	 * or truncated input fails with an {@link IllegalArgumentException} giving
+	 * its offset.
+	 */
+	public static final class BinaryCodec {
+
+		public static final byte VERSION = 1;
+
+		static final byte HISTOGRAM = 1;
+		static final byte AVERAGE = 2;
+		static final byte CASHFLOW_SEQUENCE = 3;
+		static final byte ENVIRONMENTAL_IMPACT = 4;
+		static final byte NESTED_MONOID_MAP = 5;
+		static final byte CONCATENATIVE_STRING = 6;
+		static final byte LAST_WINS_STRING = 7;
+		static final byte MIN_NUMBER = 8;
+		static final byte AND_BOOLEAN = 9;
+		static final byte LOG_LINEAR_HISTOGRAM = 10;
+		static final byte QUANTILE_SKETCH = 11;
+		static final byte HYPER_LOG_LOG = 12;
+		static final byte LONG_AVERAGE = 13;
+		static final byte DOUBLE_AVERAGE = 14;
+		static final byte RATIONAL = 15;
+		static final byte RATIO = 16;
+		static final byte TRACEABLE_RATIO = 17;
+		static final byte AMOUNT = 18;
+		static final byte LENGTH = 19;
+
+		private BinaryCodec() {
+		}
+
+		/** @return the encoded value, ready to read */
+		public static ByteBuffer encode(Object value) {
+			final Output out = new Output();
+			out.writeByte(VERSION);
+			writeTagged(out, value);
+			return out.toByteBuffer();
+		}
+
+		public static <T> T decode(ByteBuffer in, Class<T> type) {
+			return type.cast(decode(in));
+		}
+
+		/** @throws IllegalArgumentException if the input is malformed or truncated */
+		public static Object decode(ByteBuffer in) {
+			try {
+				final byte version = in.get();
+				if (version != VERSION) {
+					throw new IllegalArgumentException("Unsupported version: " + version);
+				}
+				return readTagged(in);
+			} catch (BufferUnderflowException e) {
+				throw malformed(in.position(), "truncated");
+			}
+		}
+
+		static void writeTagged(Output out, Object value) {
+			if (value instanceof Histogram) {
+				out.writeByte(HISTOGRAM);
+				((Histogram) value).writeTo(out);
+			} else if (value instanceof Average) {
+				out.writeByte(AVERAGE);
+				((Average) value).writeTo(out);
+			} else if (value instanceof CashflowSequence) {
+				out.writeByte(CASHFLOW_SEQUENCE);
+				((CashflowSequence) value).writeTo(out);
+			} else if (value instanceof EnvironmentalImpact) {
+				out.writeByte(ENVIRONMENTAL_IMPACT);
+				((EnvironmentalImpact) value).writeTo(out);
+			} else if (value instanceof NestedMonoidMap) {
+				out.writeByte(NESTED_MONOID_MAP);
+				((NestedMonoidMap) value).writeTo(out);
+			} else if (value instanceof ConcatenativeString) {
+				out.writeByte(CONCATENATIVE_STRING);
+				((ConcatenativeString) value).writeTo(out);
+			} else if (value instanceof LastWinsString) {
+				out.writeByte(LAST_WINS_STRING);
+				((LastWinsString) value).writeTo(out);
+			} else if (value instanceof MinNumber) {
+				out.writeByte(MIN_NUMBER);
+				((MinNumber) value).writeTo(out);
+			} else if (value instanceof AndBoolean) {
+				out.writeByte(AND_BOOLEAN);
+				((AndBoolean) value).writeTo(out);
+			} else if (value instanceof LogLinearHistogram) {
+				out.writeByte(LOG_LINEAR_HISTOGRAM);
+				((LogLinearHistogram) value).writeTo(out);
+			} else if (value instanceof QuantileSketch) {
+				out.writeByte(QUANTILE_SKETCH);
+				((QuantileSketch) value).writeTo(out);
+			} else if (value instanceof HyperLogLog) {
+				out.writeByte(HYPER_LOG_LOG);
+				((HyperLogLog) value).writeTo(out);
+			} else if (value instanceof LongAverage) {
+				out.writeByte(LONG_AVERAGE);
+				((LongAverage) value).writeTo(out);
+			} else if (value instanceof DoubleAverage) {
+				out.writeByte(DOUBLE_AVERAGE);
+				((DoubleAverage) value).writeTo(out);
+			} else if (value instanceof Rational) {
+				out.writeByte(RATIONAL);
+				((Rational) value).writeTo(out);
+			} else if (value instanceof Ratio) {
+				out.writeByte(RATIO);
+				((Ratio) value).writeTo(out);
+			} else if (value instanceof TraceableRatioTest.Ratio) {
+				out.writeByte(TRACEABLE_RATIO);
+				((TraceableRatioTest.Ratio) value).writeTo(out);
+			} else if (value instanceof Amount) {
+				out.writeByte(AMOUNT);
+				((Amount) value).writeTo(out);
+			} else if (value instanceof Length) {
+				// written from outside, as Length is not aware of this format
+				final Length length = (Length) value;
+				out.writeByte(LENGTH);
+				out.writeDouble(length.value()).writeString(length.unit().toString());
+			} else {
+				throw new IllegalArgumentException("No binary format for " + value.getClass().getName());
+			}
+		}
+
+		static Object readTagged(ByteBuffer in) {
+			final byte tag = in.get();
+			switch (tag) {
+			case HISTOGRAM:
+				return Histogram.readFrom(in);
+			case AVERAGE:
+				return Average.readFrom(in);
+			case CASHFLOW_SEQUENCE:
+				return CashflowSequence.readFrom(in);
+			case ENVIRONMENTAL_IMPACT:
+				return EnvironmentalImpact.readFrom(in);
+			case NESTED_MONOID_MAP:
+				return NestedMonoidMap.readFrom(in);
+			case CONCATENATIVE_STRING:
+				return ConcatenativeString.readFrom(in);
+			case LAST_WINS_STRING:
+				return LastWinsString.readFrom(in);
+			case MIN_NUMBER:
+				return MinNumber.readFrom(in);
+			case AND_BOOLEAN:
+				return AndBoolean.readFrom(in);
+			case LOG_LINEAR_HISTOGRAM:
+				return LogLinearHistogram.readFrom(in);
+			case QUANTILE_SKETCH:
+				return QuantileSketch.readFrom(in);
+			case HYPER_LOG_LOG:
+				return HyperLogLog.readFrom(in);
+			case LONG_AVERAGE:
+				return LongAverage.readFrom(in);
+			case DOUBLE_AVERAGE:
+				return DoubleAverage.readFrom(in);
+			case RATIONAL:
+				return Rational.readFrom(in);
+			case RATIO:
+				return Ratio.readFrom(in);
+			case TRACEABLE_RATIO:
+				return TraceableRatioTest.Ratio.readFrom(in);
+			case AMOUNT:
+				return Amount.readFrom(in);
+			case LENGTH:
+				return new Length(readDouble(in), Unit.of(readString(in)));
+			default:
+				throw malformed(in.position() - 1, "unknown type tag " + tag);
+			}
+		}
+
+		public static long readVarLong(ByteBuffer in) {
+			long value = 0;
+			for (int shift = 0; shift < 64; shift += 7) {
+				final byte b = in.get();
+				value |= (long) (b & 0x7F) << shift;
+				if (b >= 0) {
+					return value;
+				}
+			}
+			throw new IllegalArgumentException("Malformed varint");
+		}
+
+		public static int readVarInt(ByteBuffer in) {
+			final int start = in.position();
+			final long value = readVarLong(in);
+			if (value < 0 || value > Integer.MAX_VALUE) {
+				throw malformed(start, "varint " + value + " overflows an int");
+			}
+			return (int) value;
+		}
+
+		public static long readSignedVarLong(ByteBuffer in) {
+			final long zigzag = readVarLong(in);
+			return (zigzag >>> 1) ^ -(zigzag & 1);
+		}
+
+		public static int readSignedVarInt(ByteBuffer in) {
+			final int start = in.position();
+			final long value = readSignedVarLong(in);
+			if (value != (int) value) {
+				throw malformed(start, "varint " + value + " overflows an int");
+			}
+			return (int) value;
+		}
+
+		/**
+		 * Reads a count of items checked before anything is allocated for
+		 * them: against the limit of their type, and against the bytes left
+		 * given the fewest bytes each item takes, 0 for items that take no
+		 * bytes of their own as in runs of equal values
+		 */
+		public static int readLength(ByteBuffer in, int max, int minBytes) {
+			final int start = in.position();
+			final long length = readVarLong(in);
+			if (length < 0 || length > max) {
+				throw malformed(start, "length " + length + " over the limit of " + max);
+			}
+			if (length * minBytes > in.remaining()) {
+				throw malformed(start, "length " + length + " with only " + in.remaining() + " bytes left");
+			}
+			return (int) length;
+		}
+
+		public static IllegalArgumentException malformed(int offset, String reason) {
+			return new IllegalArgumentException("Malformed input at " + offset + ": " + reason);
+		}
+
+		/** Reads big-endian whatever the order of the buffer, as they are written so */
+		public static double readDouble(ByteBuffer in) {
+			final long bits = in.getLong();
+			return Double.longBitsToDouble(in.order() == ByteOrder.BIG_ENDIAN ? bits : Long.reverseBytes(bits));
+		}
+
+		public static String readString(ByteBuffer in) {
+			final int length = readLength(in, Integer.MAX_VALUE, 1);
+			final ByteBuffer bytes = in.slice();
+			bytes.limit(length);
+			in.position(in.position() + length);
+			return StandardCharsets.UTF_8.decode(bytes).toString();
+		}
+
+		public static byte[] readBytes(ByteBuffer in) {
+			final byte[] bytes = new byte[readLength(in, Integer.MAX_VALUE, 1)];
+			in.get(bytes);
+			return bytes;
+		}
+
+		/** A growable buffer to encode into */
+		public static final class Output {
+			private byte[] bytes = new byte[64];
+			private int size;
+
+			public Output writeByte(int value) {
+				ensure(1);
+				bytes[size++] = (byte) value;
+				return this;
+			}
+
+			/** Writes a non-negative value on 1 byte per 7 bits */
+			public Output writeVarLong(long value) {
+				ensure(10);
+				while ((value & ~0x7FL) != 0) {
+					bytes[size++] = (byte) ((value & 0x7F) | 0x80);
+					value >>>= 7;
+				}
+				bytes[size++] = (byte) value;
+				return this;
+			}
+
+			/** Writes a value that may be negative, small in magnitude on few bytes */
+			public Output writeSignedVarLong(long value) {
+				return writeVarLong((value << 1) ^ (value >> 63));
+			}
+
+			public Output writeDouble(double value) {
+				final long bits = Double.doubleToRawLongBits(value);
+				ensure(8);
+				for (int shift = 56; shift >= 0; shift -= 8) {
+					bytes[size++] = (byte) (bits >>> shift);
+				}
+				return this;
+			}
+
+			public Output writeString(String value) {
+				return writeBytes(value.getBytes(StandardCharsets.UTF_8));
+			}
+
+			public Output writeBytes(byte[] value) {
+				writeVarLong(value.length);
+				ensure(value.length);
+				System.arraycopy(value, 0, bytes, size, value.length);
+				size += value.length;
+				return this;
+			}
+
+			public ByteBuffer toByteBuffer() {
+				return ByteBuffer.wrap(Arrays.copyOf(bytes, size));
+			}
+
+			private void ensure(int extra) {
+				if (size + extra > bytes.length) {
+					bytes = Arrays.copyOf(bytes, Math.max(size + extra, 2 * bytes.length));
+				}
+			}
+		}
+	}
+}
@@ -3,17 +3,29 @@ package com.cyrillemartraire.monoids;
 import static java.lang.Double.doubleToLongBits;
 import static java.util.Arrays.asList;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 
+import java.nio.ByteBuffer;
 import java.time.LocalDate;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
 import java.util.Currency;
+import java.util.HashMap;
 import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.PriorityQueue;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.junit.Test;
 
+import com.cyrillemartraire.monoids.BinaryCodecTest.BinaryCodec;
+import com.cyrillemartraire.monoids.NestedMonoidMapTest.Group;
+
 public class CashflowSequenceTest {
 
 	@Test
@@ -31,8 +43,116 @@ public class CashflowSequenceTest {
 		assertEquals(expected, reimbursement.add(interests));
 	}
 
+	@Test
+	public void mergeIsSameAsSortingAll() {
+		final Currency ccy = Currency.getInstance("EUR");
+		final Random random = new Random(7);
+		final List<CashflowSequence> schedules = new ArrayList<>();
+		final List<Cashflow> all = new ArrayList<>();
+		for (int s = 0; s < 20; s++) {
+			final List<Cashflow> schedule = new ArrayList<>();
+			for (int f = 0; f < 30; f++) {
+				schedule.add(new Cashflow(random.nextInt(5), ccy, LocalDate.ofEpochDay(17000 + random.nextInt(60))));
+			}
+			all.addAll(schedule);
+			schedules.add(new CashflowSequence(schedule));
+		}
+		final CashflowSequence firstTwo = new CashflowSequence(new ArrayList<>(all.subList(0, 60)));
+		assertEquals(new CashflowSequence(all), CashflowSequence.EMPTY.add(schedules));
+		assertEquals(firstTwo, schedules.get(0).add(schedules.get(1)));
+	}
+
+	@Test
+	public void addCoalescingSameDateAndCurrency() {
+		final LocalDate expiry = LocalDate.parse("2018-07-19");
+		final LocalDate month1 = LocalDate.parse("2018-06-19");
+		final Currency eur = Currency.getInstance("EUR");
+		final Currency usd = Currency.getInstance("USD");
+		CashflowSequence reimbursement = new CashflowSequence(new Cashflow(10000, eur, expiry),
+				new Cashflow(50, usd, expiry));
+		CashflowSequence interests = new CashflowSequence(new Cashflow(120, eur, month1),
+				new Cashflow(120, eur, expiry));
+
+		CashflowSequence expected = new CashflowSequence(new Cashflow(120, eur, month1), new Cashflow(50, usd, expiry),
+				new Cashflow(10120, eur, expiry));
+		assertEquals(expected, reimbursement.addCoalescing(interests));
+	}
+
+	@Test
+	public void nettingByDateAndCurrency() {
+		final LocalDate month1 = LocalDate.parse("2018-06-19");
+		final LocalDate expiry = LocalDate.parse("2018-07-19");
+		final Currency eur = Currency.getInstance("EUR");
+		final Currency usd = Currency.getInstance("USD");
+		final CashflowSequence portfolio = new CashflowSequence(new Cashflow(120, eur, month1),
+				new Cashflow(-20, eur, month1), new Cashflow(50, usd, month1), new Cashflow(10000, eur, expiry),
+				new Cashflow(-50, usd, expiry), new Cashflow(50, usd, expiry));
+
+		assertEquals(new CashflowSequence(new Cashflow(100, eur, month1), new Cashflow(50, usd, month1),
+				new Cashflow(10000, eur, expiry)), portfolio.net());
+
+		final AtomicInteger lookups = new AtomicInteger();
+		final FxRates rates = ((FxRates) (from, to, date) -> {
+			lookups.incrementAndGet();
+			return date.equals(month1) ? 0.8 : 0.9;
+		}).cached();
+		assertEquals(new CashflowSequence(new Cashflow(140, eur, month1), new Cashflow(10000, eur, expiry)),
+				portfolio.net(eur, rates));
+		assertEquals(2, lookups.get());
+		portfolio.net(eur, rates);
+		assertEquals(2, lookups.get());
+	}
+
+	@Test
+	public void appendingTheInverseRetracts() {
+		final LocalDate month1 = LocalDate.parse("2018-06-19");
+		final LocalDate expiry = LocalDate.parse("2018-07-19");
+		final Currency eur = Currency.getInstance("EUR");
+		final Currency usd = Currency.getInstance("USD");
+		final CashflowSequence x = new CashflowSequence(new Cashflow(120, eur, month1), new Cashflow(50, usd, month1),
+				new Cashflow(10000, eur, expiry));
+		assertEquals(CashflowSequence.EMPTY, x.append(x.inverse()));
+		assertEquals(CashflowSequence.EMPTY, x.inverse().append(x));
+		assertEquals(x, x.append(CashflowSequence.EMPTY));
+		assertEquals(x, CashflowSequence.EMPTY.append(x));
+
+	}
+
+	@Test
+	public void nettingOnlyDropsExactZeros() {
+		final LocalDate date = LocalDate.parse("2018-06-19");
+		final Currency eur = Currency.getInstance("EUR");
+		final CashflowSequence large = new CashflowSequence(new Cashflow(1e13, eur, date));
+		final CashflowSequence almostOpposite = new CashflowSequence(new Cashflow(-1e13 + 0.01, eur, date));
+		final Iterator<Cashflow> cents = large.append(almostOpposite).iterator();
+		assertEquals(0.01, cents.next().amount(), 0.001);
+		assertFalse(cents.hasNext());
+
+		final CashflowSequence a = new CashflowSequence(new Cashflow(1, eur, date));
+		final CashflowSequence b = new CashflowSequence(new Cashflow(-1 + 1e-13, eur, date));
+		final CashflowSequence c = new CashflowSequence(new Cashflow(1e-13, eur, date));
+		final Iterator<Cashflow> left = a.append(b).append(c).iterator();
+		final Iterator<Cashflow> right = a.append(b.append(c)).iterator();
+		assertEquals(2e-13, left.next().amount(), 1e-15);
+		assertEquals(2e-13, right.next().amount(), 1e-15);
+		assertFalse(left.hasNext() || right.hasNext());
+	}
+
+	@Test
+	public void accumulatorInPlace() {
+		final LocalDate month1 = LocalDate.parse("2018-06-19");
+		final LocalDate month2 = LocalDate.parse("2018-05-19");
+		final Currency ccy = Currency.getInstance("EUR");
+		final CashflowSequence first = new CashflowSequence(new Cashflow(120, ccy, month1));
+		final CashflowSequence second = new CashflowSequence(new Cashflow(120, ccy, month2));
+
+		final CashflowSequence.Accumulator acc = new CashflowSequence.Accumulator();
+		acc.addInPlace(first).addInPlace(second).addInPlace(new Cashflow(50, ccy, month1));
+		assertEquals(first.add(second, new CashflowSequence(new Cashflow(50, ccy, month1))), acc.result());
+	}
+
 	/** A sequence of ordered cashflows with an addition operation */
-	public static class CashflowSequence implements Iterable<Cashflow> {
+	public static class CashflowSequence implements Iterable<Cashflow>, Group<CashflowSequence> {
 		private final List<Cashflow> cashflows;
 
 		public final static CashflowSequence EMPTY = new CashflowSequence();
@@ -41,12 +161,97 @@ public class CashflowSequenceTest {
 			return add(Arrays.asList(sequences));
 		}
 
+		/**
+		 * @return The sequences merged in linear time, since each is already
+		 *         sorted; ties keep the order of the arguments
+		 */
 		public final CashflowSequence add(Iterable<CashflowSequence> cashFlows) {
-			final List<Cashflow> all = new ArrayList<>(this.cashflows);
+			final List<List<Cashflow>> runs = new ArrayList<>();
+			runs.add(this.cashflows);
 			for (CashflowSequence seq : cashFlows) {
-				all.addAll(seq.cashflows);
+				runs.add(seq.cashflows);
+			}
+			return new CashflowSequence(merge(runs), true);
+		}
+
+		/**
+		 * @return The sequences merged and netted by date and currency, so that
+		 *         appending the inverse of a sequence retracts it entirely
+		 */
+		@Override
+		public CashflowSequence append(CashflowSequence other) {
+			if (other.cashflows.isEmpty()) {
+				return this;
+			}
+			if (cashflows.isEmpty()) {
+				return other;
+			}
+			return addCoalescing(other);
+		}
+
+		@Override
+		public CashflowSequence neutral() {
+			return EMPTY;
+		}
+
+		/**
+		 * @return The opposite cashflows, which append back to the empty
+		 *         sequence
+		 */
+		@Override
+		public CashflowSequence inverse() {
+			return opposite();
+		}
+
+		public CashflowSequence opposite() {
+			final List<Cashflow> opposite = new ArrayList<>(cashflows.size());
+			for (Cashflow cashflow : cashflows) {
+				opposite.add(new Cashflow(-cashflow.amount, cashflow.currency, cashflow.date));
 			}
-			return new CashflowSequence(all);
+			return new CashflowSequence(opposite);
+		}
+
+		public final CashflowSequence addCoalescing(CashflowSequence... sequences) {
+			return addCoalescing(Arrays.asList(sequences));
+		}
+
+		/**
+		 * @return The sequences merged, with the cashflows of same date and same
+		 *         currency added together into one, and dropped if they net to
+		 *         zero
+		 */
+		public final CashflowSequence addCoalescing(Iterable<CashflowSequence> cashFlows) {
+			return new CashflowSequence(coalesce(add(cashFlows).cashflows), true);
+		}
+
+		/**
+		 * @return The cashflows of same date and same currency added together
+		 *         into one, and dropped if they net to zero
+		 */
+		public final CashflowSequence net() {
+			return new CashflowSequence(coalesce(cashflows), true);
+		}
+
+		/**
+		 * @return One cashflow per date in the reporting currency, the other
+		 *         currencies being converted at the rate of their date
+		 */
+		public final CashflowSequence net(Currency reporting, FxRates rates) {
+			final List<Cashflow> netted = new ArrayList<>();
+			int i = 0;
+			while (i < cashflows.size()) {
+				final LocalDate date = cashflows.get(i).date;
+				double amount = 0.;
+				for (; i < cashflows.size() && cashflows.get(i).date.equals(date); i++) {
+					final Cashflow cashflow = cashflows.get(i);
+					amount += cashflow.currency == reporting ? cashflow.amount
+							: cashflow.amount * rates.rate(cashflow.currency, reporting, date);
+				}
+				if (amount != 0.) {
+					netted.add(new Cashflow(amount, reporting, date));
+				}
+			}
+			return new CashflowSequence(netted, true);
 		}
 
 		public CashflowSequence(Cashflow... cashflows) {
@@ -54,8 +259,194 @@ public class CashflowSequenceTest {
 		}
 
 		public CashflowSequence(List<Cashflow> cashflows) {
+			this(cashflows, false);
+		}
+
+		private CashflowSequence(List<Cashflow> cashflows, boolean sorted) {
 			this.cashflows = cashflows;
-			Collections.sort(this.cashflows);
+			if (!sorted) {
+				Collections.sort(this.cashflows);
+			}
+		}
+
+		private static List<Cashflow> merge(List<List<Cashflow>> runs) {
+			final List<List<Cashflow>> nonEmpty = new ArrayList<>(runs.size());
+			int size = 0;
+			for (List<Cashflow> run : runs) {
+				if (!run.isEmpty()) {
+					nonEmpty.add(run);
+					size += run.size();
+				}
+			}
+			if (nonEmpty.size() <= 1) {
+				return nonEmpty.isEmpty() ? new ArrayList<>() : new ArrayList<>(nonEmpty.get(0));
+			}
+			if (nonEmpty.size() == 2) {
+				return merge(nonEmpty.get(0), nonEmpty.get(1), size);
+			}
+			final List<Cashflow> merged = new ArrayList<>(size);
+			final PriorityQueue<Cursor> heap = new PriorityQueue<>(nonEmpty.size());
+			for (int i = 0; i < nonEmpty.size(); i++) {
+				heap.add(new Cursor(nonEmpty.get(i), i));
+			}
+			while (!heap.isEmpty()) {
+				final Cursor cursor = heap.poll();
+				merged.add(cursor.current());
+				if (cursor.next()) {
+					heap.add(cursor);
+				}
+			}
+			return merged;
+		}
+
+		private static List<Cashflow> merge(List<Cashflow> left, List<Cashflow> right, int size) {
+			final List<Cashflow> merged = new ArrayList<>(size);
+			int i = 0;
+			int j = 0;
+			while (i < left.size() && j < right.size()) {
+				merged.add(left.get(i).compareTo(right.get(j)) <= 0 ? left.get(i++) : right.get(j++));
+			}
+			merged.addAll(left.subList(i, left.size()));
+			merged.addAll(right.subList(j, right.size()));
+			return merged;
+		}
+
+		/**
+		 * Adds together the cashflows of same currency within each date, in
+		 * place in a few sums per date, and drops those that net to exactly
+		 * zero: a tolerance would drop real money on large amounts, and make
+		 * appending depend on the grouping
+		 */
+		private static List<Cashflow> coalesce(List<Cashflow> sorted) {
+			final List<Cashflow> coalesced = new ArrayList<>(sorted.size());
+			Currency[] currencies = new Currency[4];
+			double[] sums = new double[4];
+			int i = 0;
+			while (i < sorted.size()) {
+				final LocalDate date = sorted.get(i).date;
+				int count = 0;
+				for (; i < sorted.size() && sorted.get(i).date.equals(date); i++) {
+					final Cashflow cashflow = sorted.get(i);
+					int k = 0;
+					while (k < count && !currencies[k].equals(cashflow.currency)) {
+						k++;
+					}
+					if (k == count) {
+						if (count == currencies.length) {
+							currencies = Arrays.copyOf(currencies, 2 * count);
+							sums = Arrays.copyOf(sums, 2 * count);
+						}
+						currencies[count] = cashflow.currency;
+						sums[count++] = 0.;
+					}
+					sums[k] += cashflow.amount;
+				}
+				final int from = coalesced.size();
+				for (int k = 0; k < count; k++) {
+					if (sums[k] != 0.) {
+						coalesced.add(new Cashflow(sums[k], currencies[k], date));
+					}
+				}
+				Collections.sort(coalesced.subList(from, coalesced.size()));
+			}
+			return coalesced;
+		}
+
+		/** The position in one sorted run, during a k-way merge */
+		private static final class Cursor implements Comparable<Cursor> {
+			private final List<Cashflow> run;
+			private final int order;
+			private int index;
+
+			Cursor(List<Cashflow> run, int order) {
+				this.run = run;
+				this.order = order;
+			}
+
+			Cashflow current() {
+				return run.get(index);
+			}
+
+			boolean next() {
+				return ++index < run.size();
+			}
+
+			@Override
+			public int compareTo(Cursor o) {
+				final int compare = current().compareTo(o.current());
+				return compare != 0 ? compare : Integer.compare(order, o.order);
+			}
+		}
+
+		/** A mutable companion to gather many cashflows and sort them once */
+		public static final class Accumulator {
+			private final List<Cashflow> all = new ArrayList<>();
+
+			public Accumulator addInPlace(Cashflow cashflow) {
+				all.add(cashflow);
+				return this;
+			}
+
+			public Accumulator addInPlace(CashflowSequence sequence) {
+				all.addAll(sequence.cashflows);
+				return this;
+			}
+
+			public CashflowSequence result() {
+				return new CashflowSequence(new ArrayList<>(all));
+			}
+		}
+
+		/**
+		 * Writes the currencies once, then each cashflow as its amount, the
+		 * index of its currency and the days since the previous cashflow, which
+		 * is small since they are sorted by date.
+		 */
+		void writeTo(BinaryCodec.Output out) {
+			final Map<Currency, Integer> indexes = new HashMap<>();
+			final List<Currency> currencies = new ArrayList<>();
+			for (Cashflow cashflow : cashflows) {
+				if (!indexes.containsKey(cashflow.currency)) {
+					indexes.put(cashflow.currency, currencies.size());
+					currencies.add(cashflow.currency);
+				}
+			}
+			out.writeVarLong(currencies.size());
+			for (Currency currency : currencies) {
+				out.writeString(currency.getCurrencyCode());
+			}
+			out.writeVarLong(cashflows.size());
+			long previousDay = 0;
+			for (Cashflow cashflow : cashflows) {
+				final long day = cashflow.date.toEpochDay();
+				out.writeDouble(cashflow.amount).writeVarLong(indexes.get(cashflow.currency))
+						.writeSignedVarLong(day - previousDay);
+				previousDay = day;
+			}
+		}
+
+		static CashflowSequence readFrom(ByteBuffer in) {
+			// a currency code takes 4 bytes, a cashflow at least 10
+			final Currency[] currencies = new Currency[BinaryCodec.readLength(in, Integer.MAX_VALUE, 4)];
+			for (int i = 0; i < currencies.length; i++) {
+				currencies[i] = Currency.getInstance(BinaryCodec.readString(in));
+			}
+			final int size = BinaryCodec.readLength(in, Integer.MAX_VALUE, 10);
+			final List<Cashflow> cashflows = new ArrayList<>(size);
+			long day = 0;
+			for (int i = 0; i < size; i++) {
+				final double amount = BinaryCodec.readDouble(in);
+				final int start = in.position();
+				final int index = BinaryCodec.readVarInt(in);
+				if (index >= currencies.length) {
+					throw BinaryCodec.malformed(start, "currency " + index + " of " + currencies.length);
+				}
+				final Currency currency = currencies[index];
+				day += BinaryCodec.readSignedVarLong(in);
+				cashflows.add(new Cashflow(amount, currency, LocalDate.ofEpochDay(day)));
+			}
+			// written in order, so already sorted
+			return new CashflowSequence(cashflows, true);
 		}
 
 		/* You may also consider extending with more behavior, e.g.
@@ -67,7 +458,6 @@ public class CashflowSequenceTest {
 		 * 
 		 *  // space vector
 		 * CashflowSequence multiply(double factor)
-		 * CashflowSequence opposite()
 		 * 
 		 *  // dates convenience
 		 * List<Date> allDates() 
@@ -100,6 +490,43 @@ public class CashflowSequenceTest {
 
 	}
 
+	/** A source of exchange rates, e.g. a market data service */
+	public static interface FxRates {
+		/** @return The amount of the target currency worth one unit of the source currency at that date */
+		double rate(Currency from, Currency to, LocalDate date);
+
+		/** @return These rates, each fetched once per currency pair and date */
+		default FxRates cached() {
+			final FxRates source = this;
+			final Map<RateKey, Double> cache = new ConcurrentHashMap<>();
+			return (from, to, date) -> cache.computeIfAbsent(new RateKey(from, to, date),
+					key -> source.rate(from, to, date));
+		}
+	}
+
+	private static final class RateKey {
+		private final Currency from;
+		private final Currency to;
+		private final LocalDate date;
+
+		RateKey(Currency from, Currency to, LocalDate date) {
+			this.from = from;
+			this.to = to;
+			this.date = date;
+		}
+
+		@Override
+		public int hashCode() {
+			return Objects.hash(from, to, date);
+		}
+
+		@Override
+		public boolean equals(Object o) {
+			RateKey other = (RateKey) o;
+			return from == other.from && to == other.to && date.equals(other.date);
+		}
+	}
+
 	public static class Cashflow implements Comparable<Cashflow> {
 		private final double amount;
 		private final Currency currency;
@@ -111,6 +538,18 @@ public class CashflowSequenceTest {
 			this.date = date;
 		}
 
+		public double amount() {
+			return amount;
+		}
+
+		public Currency currency() {
+			return currency;
+		}
+
+		public LocalDate date() {
+			return date;
+		}
+
 		public Cashflow add(Cashflow other) {
 			if (!date.equals(other.date)) {
 				throw new IllegalArgumentException("Can only add at same date: " + date + "<>" + other.date);
@@ -0,0 +1,234 @@
+package com.cyrillemartraire.monoids;
+
+import static org.junit.Assert.assertEquals;
+
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Currency;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import org.junit.Test;
+
+import com.cyrillemartraire.monoids.CashflowSequenceTest.Cashflow;
+import com.cyrillemartraire.monoids.CashflowSequenceTest.CashflowSequence;
+
+public class ColumnarCashflowSequenceTest {
+
+	private static final LocalDate EXPIRY = LocalDate.parse("2018-07-19");
+	private static final LocalDate MONTH1 = LocalDate.parse("2018-06-19");
+	private static final LocalDate MONTH2 = LocalDate.parse("2018-05-19");
+	private static final Currency EUR = Currency.getInstance("EUR");
+	private static final Currency USD = Currency.getInstance("USD");
+
+	@Test
+	public void sameContentAsCashflowSequence() {
+		final Cashflow[] cashflows = { new Cashflow(120, EUR, MONTH1), new Cashflow(120, USD, MONTH2),
+				new Cashflow(120, EUR, EXPIRY) };
+		final ColumnarCashflowSequence columnar = ColumnarCashflowSequence.of(cashflows);
+		assertEquals(3, columnar.size());
+		assertEquals(new Cashflow(120, USD, MONTH2), columnar.iterator().next());
+		assertEquals(new CashflowSequence(cashflows.clone()), columnar.toCashflowSequence());
+	}
+
+	@Test
+	public void addMergesLikeCashflowSequence() {
+		final Cashflow reimbursement = new Cashflow(10000, EUR, EXPIRY);
+		final Cashflow[] interests = { new Cashflow(120, EUR, MONTH1), new Cashflow(120, USD, MONTH2),
+				new Cashflow(120, EUR, EXPIRY) };
+		final Cashflow fee = new Cashflow(15, USD, MONTH1);
+
+		final ColumnarCashflowSequence sum = ColumnarCashflowSequence.of(reimbursement)
+				.add(ColumnarCashflowSequence.of(interests), ColumnarCashflowSequence.EMPTY, ColumnarCashflowSequence.of(fee));
+		final CashflowSequence expected = new CashflowSequence(reimbursement)
+				.add(new CashflowSequence(interests), new CashflowSequence(fee));
+		assertEquals(expected, sum.toCashflowSequence());
+		assertEquals(ColumnarCashflowSequence.of(expected), sum);
+	}
+
+	/**
+	 * The same sorted sequence of cashflows as {@link CashflowSequence}, but
+	 * stored as parallel primitive columns (epoch day, amount, currency index)
+	 * rather than as objects, to be compact and cache friendly when merging.
+	 * Cashflow objects are only created when iterating.
+	 */
+	public static class ColumnarCashflowSequence implements Iterable<Cashflow> {
+		private final int[] days;
+		private final double[] amounts;
+		private final short[] currencies;
+
+		public final static ColumnarCashflowSequence EMPTY = new ColumnarCashflowSequence(new int[0], new double[0],
+				new short[0]);
+
+		public static ColumnarCashflowSequence of(Cashflow... cashflows) {
+			return of(Arrays.asList(cashflows));
+		}
+
+		public static ColumnarCashflowSequence of(Iterable<Cashflow> cashflows) {
+			final List<Cashflow> sorted = new ArrayList<>();
+			for (Cashflow cashflow : cashflows) {
+				sorted.add(cashflow);
+			}
+			Collections.sort(sorted);
+			final int[] days = new int[sorted.size()];
+			final double[] amounts = new double[sorted.size()];
+			final short[] currencies = new short[sorted.size()];
+			for (int i = 0; i < days.length; i++) {
+				final Cashflow cashflow = sorted.get(i);
+				days[i] = (int) cashflow.date().toEpochDay();
+				amounts[i] = cashflow.amount();
+				currencies[i] = CurrencyIndex.of(cashflow.currency());
+			}
+			return new ColumnarCashflowSequence(days, amounts, currencies);
+		}
+
+		private ColumnarCashflowSequence(int[] days, double[] amounts, short[] currencies) {
+			this.days = days;
+			this.amounts = amounts;
+			this.currencies = currencies;
+		}
+
+		public final ColumnarCashflowSequence add(ColumnarCashflowSequence... sequences) {
+			return add(Arrays.asList(sequences));
+		}
+
+		/**
+		 * @return The sequences merged pairwise in a balanced tree, each merge
+		 *         being a linear pass over the columns; ties keep the order of
+		 *         the arguments
+		 */
+		public final ColumnarCashflowSequence add(List<ColumnarCashflowSequence> sequences) {
+			final List<ColumnarCashflowSequence> runs = new ArrayList<>(sequences.size() + 1);
+			runs.add(this);
+			runs.addAll(sequences);
+			return mergeRange(runs, 0, runs.size());
+		}
+
+		private static ColumnarCashflowSequence mergeRange(List<ColumnarCashflowSequence> runs, int from, int to) {
+			if (to - from == 1) {
+				return runs.get(from);
+			}
+			final int middle = (from + to) >>> 1;
+			return merge(mergeRange(runs, from, middle), mergeRange(runs, middle, to));
+		}
+
+		private static ColumnarCashflowSequence merge(ColumnarCashflowSequence left, ColumnarCashflowSequence right) {
+			if (right.size() == 0) {
+				return left;
+			}
+			if (left.size() == 0) {
+				return right;
+			}
+			final int size = left.size() + right.size();
+			final int[] days = new int[size];
+			final double[] amounts = new double[size];
+			final short[] currencies = new short[size];
+			int i = 0;
+			int j = 0;
+			for (int k = 0; k < size; k++) {
+				final boolean takeLeft = j == right.size()
+						|| i < left.size() && compare(left, i, right, j) <= 0;
+				final ColumnarCashflowSequence from = takeLeft ? left : right;
+				final int index = takeLeft ? i++ : j++;
+				days[k] = from.days[index];
+				amounts[k] = from.amounts[index];
+				currencies[k] = from.currencies[index];
+			}
+			return new ColumnarCashflowSequence(days, amounts, currencies);
+		}
+
+		/** Same order as {@link Cashflow#compareTo(Cashflow)} */
+		private static int compare(ColumnarCashflowSequence a, int i, ColumnarCashflowSequence b, int j) {
+			if (a.days[i] == b.days[j]) {
+				return (int) (a.amounts[i] - b.amounts[j]);
+			}
+			return Integer.compare(a.days[i], b.days[j]);
+		}
+
+		public int size() {
+			return days.length;
+		}
+
+		public Cashflow get(int index) {
+			return new Cashflow(amounts[index], CurrencyIndex.currency(currencies[index]),
+					LocalDate.ofEpochDay(days[index]));
+		}
+
+		public CashflowSequence toCashflowSequence() {
+			final List<Cashflow> cashflows = new ArrayList<>(size());
+			for (Cashflow cashflow : this) {
+				cashflows.add(cashflow);
+			}
+			return new CashflowSequence(cashflows);
+		}
+
+		@Override
+		public Iterator<Cashflow> iterator() {
+			return new Iterator<Cashflow>() {
+				private int index;
+
+				@Override
+				public boolean hasNext() {
+					return index < size();
+				}
+
+				@Override
+				public Cashflow next() {
+					if (!hasNext()) {
+						throw new NoSuchElementException();
+					}
+					return get(index++);
+				}
+			};
+		}
+
+		@Override
+		public int hashCode() {
+			return Arrays.hashCode(days) ^ Arrays.hashCode(amounts) ^ Arrays.hashCode(currencies);
+		}
+
+		@Override
+		public boolean equals(Object o) {
+			ColumnarCashflowSequence other = (ColumnarCashflowSequence) o;
+			return Arrays.equals(days, other.days) && Arrays.equals(amounts, other.amounts)
+					&& Arrays.equals(currencies, other.currencies);
+		}
+
+		@Override
+		public String toString() {
+			return toCashflowSequence().toString();
+		}
+	}
+
+	/** Numbers each currency once, so that columns store a short instead */
+	static final class CurrencyIndex {
+		private static final Map<Currency, Short> INDEX = new ConcurrentHashMap<>();
+		private static final List<Currency> CURRENCIES = new CopyOnWriteArrayList<>();
+
+		static short of(Currency currency) {
+			final Short index = INDEX.get(currency);
+			return index != null ? index : register(currency);
+		}
+
+		private static synchronized short register(Currency currency) {
+			final Short index = INDEX.get(currency);
+			if (index != null) {
+				return index;
+			}
+			final short next = (short) CURRENCIES.size();
+			CURRENCIES.add(currency);
+			INDEX.put(currency, next);
+			return next;
+		}
+
+		static Currency currency(short index) {
+			return CURRENCIES.get(index);
+		}
+	}
+}
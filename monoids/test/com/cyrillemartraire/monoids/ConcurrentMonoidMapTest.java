@@ -0,0 +1,242 @@
+package com.cyrillemartraire.monoids;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.function.BiConsumer;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.function.Supplier;
+
+import org.junit.Test;
+
+import com.cyrillemartraire.monoids.AverageTest.Average;
+import com.cyrillemartraire.monoids.HashTrieMapTest.HashTrieMap;
+import com.cyrillemartraire.monoids.HistogramTest.Histogram;
+import com.cyrillemartraire.monoids.NestedMonoidMapTest.MinNumber;
+import com.cyrillemartraire.monoids.NestedMonoidMapTest.Monoid;
+import com.cyrillemartraire.monoids.NestedMonoidMapTest.NestedMonoidMap;
+
+public class ConcurrentMonoidMapTest {
+
+	private static final Histogram EMPTY = Histogram.empty(10);
+
+	@Test
+	public void concurrentWritersLoseNothing() throws Exception {
+		final ConcurrentMonoidMap<String, Average.Accumulator, Average> averages = ConcurrentMonoidMap.averages();
+		final ExecutorService threads = Executors.newFixedThreadPool(32);
+		try {
+			final List<Future<?>> writers = new ArrayList<>();
+			for (int t = 0; t < 32; t++) {
+				writers.add(threads.submit(() -> {
+					for (int i = 0; i < 1000; i++) {
+						if (i % 2 == 0) {
+							averages.add("product-" + i % 10, Average.of(i % 10));
+						} else {
+							final int value = i % 10;
+							averages.record("product-" + value, acc -> acc.addInPlace(value));
+						}
+					}
+				}));
+			}
+			for (Future<?> writer : writers) {
+				writer.get();
+			}
+		} finally {
+			threads.shutdown();
+		}
+		assertEquals(10, averages.size());
+		for (int k = 0; k < 10; k++) {
+			final Average average = averages.get("product-" + k);
+			assertEquals(3200, average.count());
+			assertEquals(k, average.average(), 0.);
+		}
+		assertEquals(Average.NEUTRAL, averages.get("unknown"));
+	}
+
+	@Test
+	public void snapshotIsImmutable() throws Exception {
+		final ConcurrentMonoidMap<String, Histogram.Accumulator, Histogram> histograms = ConcurrentMonoidMap.histograms(10);
+		histograms.add("latency", EMPTY.withPoints(12));
+		histograms.add("latency", EMPTY.withPoints(45));
+		histograms.add("size", EMPTY.withPoints(99));
+		final NestedMonoidMap snapshot = histograms.snapshot();
+		histograms.add("latency", EMPTY.withPoints(46));
+
+		final Map<String, Monoid<?>> expected = new HashMap<>();
+		expected.put("latency", EMPTY.withPoints(12, 45));
+		expected.put("size", EMPTY.withPoints(99));
+		assertEquals(new NestedMonoidMap(expected), snapshot);
+		assertEquals(EMPTY.withPoints(12, 45, 46), histograms.get("latency"));
+	}
+
+	@Test
+	public void anyMonoidWithoutAccumulator() throws Exception {
+		final ConcurrentMonoidMap<String, ?, MinNumber> minimums = ConcurrentMonoidMap.of(new MinNumber(0).neutral());
+		final ExecutorService threads = Executors.newFixedThreadPool(8);
+		try {
+			final List<Future<?>> writers = new ArrayList<>();
+			for (int t = 0; t < 8; t++) {
+				final int offset = t;
+				writers.add(threads.submit(() -> {
+					for (int i = 0; i < 1000; i++) {
+						minimums.add("key-" + i % 3, new MinNumber(1000 * offset + i));
+					}
+				}));
+			}
+			for (Future<?> writer : writers) {
+				writer.get();
+			}
+		} finally {
+			threads.shutdown();
+		}
+		assertEquals(new MinNumber(0), minimums.get("key-0"));
+		assertEquals(new MinNumber(1), minimums.get("key-1"));
+		assertEquals(new MinNumber(2), minimums.get("key-2"));
+		assertEquals(new MinNumber(Integer.MAX_VALUE), minimums.get("unknown"));
+	}
+
+	/**
+	 * A keyed aggregator for many concurrent writers: each key has its own
+	 * mutable accumulator, added to in place under the lock of that
+	 * accumulator only. Looking up the accumulator of an existing key takes no
+	 * lock at all, so writers of different keys never contend, and writers of
+	 * a same key hold its lock just for an in-place add that allocates nothing.
+	 * The immutable values are only built on reads. A monoid without such an
+	 * accumulator is held as its current value instead, see {@link #of}.
+	 * <p>
+	 * Concurrent adds to a same key happen in no particular order, hence the
+	 * monoid should be commutative. A snapshot is consistent key by key but
+	 * not across keys while writers are running.
+	 */
+	public static final class ConcurrentMonoidMap<K, A, M extends Monoid<M>> {
+
+		private final Supplier<A> accumulators;
+		private final BiConsumer<A, M> addInPlace;
+		private final Function<A, M> result;
+		private final M neutral;
+		private final ConcurrentHashMap<K, A> values = new ConcurrentHashMap<>();
+
+		public static <K> ConcurrentMonoidMap<K, Average.Accumulator, Average> averages() {
+			return new ConcurrentMonoidMap<>(Average.Accumulator::new, Average.Accumulator::addInPlace,
+					Average.Accumulator::result, Average.NEUTRAL);
+		}
+
+		public static <K> ConcurrentMonoidMap<K, Histogram.Accumulator, Histogram> histograms(int binsCount) {
+			return new ConcurrentMonoidMap<>(() -> new Histogram.Accumulator(binsCount),
+					Histogram.Accumulator::addInPlace, Histogram.Accumulator::result, Histogram.empty(binsCount));
+		}
+
+		/**
+		 * @return a map for any monoid without a mutable companion, each key
+		 *         holding its current value replaced by an append under lock
+		 */
+		public static <K, M extends Monoid<M>> ConcurrentMonoidMap<K, Holder<M>, M> of(M neutral) {
+			return new ConcurrentMonoidMap<>(() -> new Holder<>(neutral), Holder::addInPlace, Holder::result,
+					neutral);
+		}
+
+		public ConcurrentMonoidMap(Supplier<A> accumulators, BiConsumer<A, M> addInPlace, Function<A, M> result,
+				M neutral) {
+			this.accumulators = accumulators;
+			this.addInPlace = addInPlace;
+			this.result = result;
+			this.neutral = neutral;
+		}
+
+		public ConcurrentMonoidMap<K, A, M> add(K key, M value) {
+			final A accumulator = accumulatorOf(key);
+			synchronized (accumulator) {
+				addInPlace.accept(accumulator, value);
+			}
+			return this;
+		}
+
+		/** Records straight into the accumulator of the key, e.g. a single value */
+		public ConcurrentMonoidMap<K, A, M> record(K key, Consumer<A> update) {
+			final A accumulator = accumulatorOf(key);
+			synchronized (accumulator) {
+				update.accept(accumulator);
+			}
+			return this;
+		}
+
+		public ConcurrentMonoidMap<K, A, M> addAll(Map<K, M> other) {
+			for (Map.Entry<K, M> entry : other.entrySet()) {
+				add(entry.getKey(), entry.getValue());
+			}
+			return this;
+		}
+
+		private A accumulatorOf(K key) {
+			final A accumulator = values.get(key);
+			// computeIfAbsent locks the bin even when present, hence only on a miss
+			return accumulator != null ? accumulator : values.computeIfAbsent(key, k -> accumulators.get());
+		}
+
+		/** @return the value of the key, or the neutral element if none */
+		public M get(K key) {
+			final A accumulator = values.get(key);
+			return accumulator == null ? neutral : resultOf(accumulator);
+		}
+
+		private M resultOf(A accumulator) {
+			synchronized (accumulator) {
+				return result.apply(accumulator);
+			}
+		}
+
+		public int size() {
+			return values.size();
+		}
+
+		/** @return an immutable copy of the current values */
+		public Map<K, M> toMap() {
+			final Map<K, M> copy = new HashMap<>();
+			for (Map.Entry<K, A> entry : values.entrySet()) {
+				copy.put(entry.getKey(), resultOf(entry.getValue()));
+			}
+			return HashTrieMap.copyOf(copy);
+		}
+
+		/** @return an immutable copy of the current values, keyed by their string form */
+		public NestedMonoidMap snapshot() {
+			final Map<String, Monoid<?>> copy = new HashMap<>();
+			for (Map.Entry<K, A> entry : values.entrySet()) {
+				if (copy.put(String.valueOf(entry.getKey()), resultOf(entry.getValue())) != null) {
+					throw new IllegalStateException("Two keys have the same string form: " + entry.getKey());
+				}
+			}
+			return new NestedMonoidMap(copy);
+		}
+
+		@Override
+		public String toString() {
+			return toMap().toString();
+		}
+
+		/** The accumulator of any monoid: its current immutable value */
+		public static final class Holder<M extends Monoid<M>> {
+			private M value;
+
+			Holder(M neutral) {
+				this.value = neutral;
+			}
+
+			public void addInPlace(M other) {
+				value = value.append(other);
+			}
+
+			public M result() {
+				return value;
+			}
+		}
+	}
+}
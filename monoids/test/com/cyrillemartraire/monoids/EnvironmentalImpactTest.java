@@ -6,9 +6,16 @@ import static com.cyrillemartraire.monoids.EnvironmentalImpactTest.Environmental
 import static java.lang.Double.doubleToLongBits;
 import static java.lang.Math.abs;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+
+import java.nio.ByteBuffer;
 
 import org.junit.Test;
 
+import com.cyrillemartraire.monoids.BinaryCodecTest.BinaryCodec;
+import com.cyrillemartraire.monoids.NestedMonoidMapTest.Group;
+import com.cyrillemartraire.monoids.NestedMonoidMapTest.Monoid;
+
 public class EnvironmentalImpactTest {
 
 	@Test
@@ -30,16 +37,92 @@ public class EnvironmentalImpactTest {
 		System.out.println(pizza);
 	}
 
+	@Test
+	public void pizzaImpactInPlace() {
+		EnvironmentalImpact cooking = singleSupplier(certified(1, "kWh", 0.3), certified(1, "T", 0.25));
+		EnvironmentalImpact dough = singleSupplier(uncertified(5, "kWh", 5.), uncertified(0.5, "T", 1.));
+		EnvironmentalImpact tomatoSauce = singleSupplier(uncertified(3, "kWh", 1.), certified(0.2, "T", 0.1));
+
+		final EnvironmentalImpact.Accumulator pizza = new EnvironmentalImpact.Accumulator();
+		pizza.addInPlace(cooking).addInPlace(dough).addInPlace(0.3, tomatoSauce);
+		assertEquals(cooking.add(dough).add(0.3, tomatoSauce), pizza.result());
+	}
+
+	@Test
+	public void mixedUnitsConvert() {
+		assertEquals(new Amount(1.5, "MWh", 0.2), new Amount(1, "MWh", 0.1).add(new Amount(500, "kWh", 100)));
+		assertEquals(new Amount(1250, "kg", 10), new Amount(250, Unit.KG, 0).add(new Amount(1, Unit.T, 0.01)));
+		EnvironmentalImpact dough = singleSupplier(uncertified(5, "kWh", 5.), uncertified(500, "kg", 1000.));
+		EnvironmentalImpact tons = singleSupplier(uncertified(0.005, "MWh", 0.005), uncertified(0.5, "T", 1.));
+		assertEquals(dough.add(dough), dough.add(tons));
+		assertEquals(EnvironmentalImpact.none().add(1., dough).add(1., tons),
+				ImpactColumns.of(dough, tons).weightedSum(new double[] { 1., 1. }));
+	}
+
+	@Test
+	public void neutralIsNeutralInAnyUnit() {
+		final Amount megawatts = new Amount(1.5, Unit.MWH, 0.2);
+		assertEquals(megawatts, Amount.neutral(Unit.KWH).add(megawatts));
+		assertEquals(megawatts, megawatts.add(Amount.neutral(Unit.KWH)));
+		assertEquals(Amount.neutral(Unit.KWH).add(megawatts), megawatts.add(Amount.neutral(Unit.KWH)));
+		assertEquals(megawatts.hashCode(), Amount.neutral(Unit.KWH).add(megawatts).hashCode());
+
+		final EnvironmentalImpact kilograms = singleSupplier(uncertified(0.005, "MWh", 0.005),
+				uncertified(500, "kg", 1000.));
+		assertEquals(kilograms, EnvironmentalImpact.none().add(kilograms));
+		assertEquals(kilograms, kilograms.add(EnvironmentalImpact.none()));
+	}
+
+	@Test
+	public void equalityIsSymmetricAcrossUnits() {
+		assertFalse(new Amount(1, "T", 0).equals(new Amount(1005, "kg", 0)));
+		assertFalse(new Amount(1005, "kg", 0).equals(new Amount(1, "T", 0)));
+		assertEquals(new Amount(1, "T", 0), new Amount(1000, "kg", 0));
+		assertEquals(new Amount(1000, "kg", 0), new Amount(1, "T", 0));
+		assertEquals(new Amount(1, "T", 0).hashCode(), new Amount(1000, "kg", 0).hashCode());
+	}
+
+	@Test
+	public void lengthsCompareInBaseUnit() {
+		assertEquals(new Length(1, Unit.KM), Length.ZERO.add(new Length(1, Unit.KM)));
+		assertEquals(new Length(1, Unit.KM), new Length(1, Unit.KM).add(Length.ZERO));
+		assertEquals(new Length(1, Unit.KM).hashCode(), new Length(1000, Unit.M).hashCode());
+		assertFalse(new Length(1, Unit.KM).equals(new Length(1, Unit.M)));
+		assertEquals("1.0 km", new Length(1, Unit.KM).toString());
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void unknownUnitsAreRejected() {
+		Unit.of("kwh");
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void incompatibleUnits() {
+		new Amount(1, "kWh", 0).add(new Amount(1, "T", 0));
+	}
+
+	@Test
+	public void pizzaImpactInBatch() {
+		EnvironmentalImpact cooking = singleSupplier(certified(1, "kWh", 0.3), certified(1, "T", 0.25));
+		EnvironmentalImpact dough = singleSupplier(uncertified(5, "kWh", 5.), uncertified(0.5, "T", 1.));
+		EnvironmentalImpact tomatoSauce = singleSupplier(uncertified(3, "kWh", 1.), certified(0.2, "T", 0.1));
+
+		final ImpactColumns components = ImpactColumns.of(cooking, dough, tomatoSauce);
+		final EnvironmentalImpact pizza = components.weightedSum(new double[] { 1., 1., 0.3 });
+		assertEquals(EnvironmentalImpact.none().add(1., cooking).add(1., dough).add(0.3, tomatoSauce), pizza);
+		assertEquals(cooking.add(dough).add(tomatoSauce.times(0.3)), pizza);
+	}
+
 	/**
 	 * The energy and carbon impacts across a supply chain
 	 */
-	public static class EnvironmentalImpact {
+	public static class EnvironmentalImpact implements Monoid<EnvironmentalImpact> {
 
 		private final int supplierCount;
 		private final CertifiedAmount energyConsumption;
 		private final CertifiedAmount carbonEmission;
 
-		public static final EnvironmentalImpact neutral() {
+		public static final EnvironmentalImpact none() {
 			return new EnvironmentalImpact(0, CertifiedAmount.neutral("kWh"), CertifiedAmount.neutral("T"));
 		}
 
@@ -64,11 +147,57 @@ public class EnvironmentalImpactTest {
 			return add(other.times(coefficient));
 		}
 
+		@Override
+		public EnvironmentalImpact append(EnvironmentalImpact other) {
+			return add(other);
+		}
+
+		@Override
+		public EnvironmentalImpact neutral() {
+			return none();
+		}
+
 		public EnvironmentalImpact times(double coefficient) {
 			return new EnvironmentalImpact(supplierCount, energyConsumption.times(coefficient),
 					carbonEmission.times(coefficient));
 		}
 
+		/** A mutable companion to fold many impacts without allocating */
+		public static final class Accumulator {
+			private int supplierCount;
+			private final CertifiedAmount.Accumulator energyConsumption = new CertifiedAmount.Accumulator("kWh");
+			private final CertifiedAmount.Accumulator carbonEmission = new CertifiedAmount.Accumulator("T");
+
+			public Accumulator addInPlace(EnvironmentalImpact other) {
+				supplierCount += other.supplierCount;
+				energyConsumption.addInPlace(other.energyConsumption);
+				carbonEmission.addInPlace(other.carbonEmission);
+				return this;
+			}
+
+			public Accumulator addInPlace(double coefficient, EnvironmentalImpact other) {
+				supplierCount += other.supplierCount;
+				energyConsumption.addInPlace(coefficient, other.energyConsumption);
+				carbonEmission.addInPlace(coefficient, other.carbonEmission);
+				return this;
+			}
+
+			public EnvironmentalImpact result() {
+				return new EnvironmentalImpact(supplierCount, energyConsumption.result(), carbonEmission.result());
+			}
+		}
+
+		void writeTo(BinaryCodec.Output out) {
+			out.writeVarLong(supplierCount);
+			energyConsumption.writeTo(out);
+			carbonEmission.writeTo(out);
+		}
+
+		static EnvironmentalImpact readFrom(ByteBuffer in) {
+			return new EnvironmentalImpact(BinaryCodec.readVarInt(in), CertifiedAmount.readFrom(in),
+					CertifiedAmount.readFrom(in));
+		}
+
 		@Override
 		public int hashCode() {
 			return 31 ^ carbonEmission.hashCode() + energyConsumption.hashCode() ^ supplierCount;
@@ -89,6 +218,104 @@ public class EnvironmentalImpactTest {
 
 	}
 
+	/**
+	 * Many environmental impacts stored as one primitive column per field
+	 * (structure of arrays), to compute a weighted sum of all of them in a few
+	 * plain loops without creating any intermediate object
+	 */
+	public static class ImpactColumns {
+		private final int[] supplierCounts;
+		private final double[] energyValues;
+		private final double[] energyErrorMargins;
+		private final double[] energyScores;
+		private final double[] carbonValues;
+		private final double[] carbonErrorMargins;
+		private final double[] carbonScores;
+
+		public static ImpactColumns of(EnvironmentalImpact... impacts) {
+			final ImpactColumns columns = new ImpactColumns(impacts.length);
+			for (int i = 0; i < impacts.length; i++) {
+				columns.set(i, impacts[i]);
+			}
+			return columns;
+		}
+
+		public ImpactColumns(int size) {
+			this.supplierCounts = new int[size];
+			this.energyValues = new double[size];
+			this.energyErrorMargins = new double[size];
+			this.energyScores = new double[size];
+			this.carbonValues = new double[size];
+			this.carbonErrorMargins = new double[size];
+			this.carbonScores = new double[size];
+		}
+
+		/** Sets the impact at this index, converted into kWh and T */
+		public void set(int index, EnvironmentalImpact impact) {
+			final CertifiedAmount energy = impact.energyConsumption;
+			final CertifiedAmount carbon = impact.carbonEmission;
+			final double energyFactor = conversion(energy.amount, Unit.KWH);
+			final double carbonFactor = conversion(carbon.amount, Unit.T);
+			supplierCounts[index] = impact.supplierCount;
+			energyValues[index] = energyFactor * energy.amount.value;
+			energyErrorMargins[index] = energyFactor * energy.amount.errorMargin;
+			energyScores[index] = energy.score;
+			carbonValues[index] = carbonFactor * carbon.amount.value;
+			carbonErrorMargins[index] = carbonFactor * carbon.amount.errorMargin;
+			carbonScores[index] = carbon.score;
+		}
+
+		private static double conversion(Amount amount, Unit unit) {
+			if (!amount.unit.isCompatible(unit))
+				throw new IllegalArgumentException("Cannot add amounts of different units: " + unit + " <> " + amount.unit);
+			return amount.unit.factorTo(unit);
+		}
+
+		public int size() {
+			return supplierCounts.length;
+		}
+
+		/**
+		 * @return The sum of each impact times its coefficient, the same as
+		 *         folding {@link EnvironmentalImpact#add(double, EnvironmentalImpact)}
+		 *         from the neutral impact
+		 */
+		public EnvironmentalImpact weightedSum(double[] coefficients) {
+			if (coefficients.length != size()) {
+				throw new IllegalArgumentException("Need one coefficient per impact: " + coefficients.length + " <> " + size());
+			}
+			int supplierCount = 0;
+			for (int i = 0; i < supplierCounts.length; i++) {
+				supplierCount += supplierCounts[i];
+			}
+			// like times(), the weight of a scaled amount is its coefficient
+			final double weight = sum(coefficients);
+			return new EnvironmentalImpact(supplierCount,
+					new CertifiedAmount(
+							new Amount(dot(coefficients, energyValues), Unit.KWH, dot(coefficients, energyErrorMargins)),
+							dot(coefficients, energyScores), weight),
+					new CertifiedAmount(
+							new Amount(dot(coefficients, carbonValues), Unit.T, dot(coefficients, carbonErrorMargins)),
+							dot(coefficients, carbonScores), weight));
+		}
+
+		private static double dot(double[] coefficients, double[] values) {
+			double sum = 0.;
+			for (int i = 0; i < values.length; i++) {
+				sum += coefficients[i] * values[i];
+			}
+			return sum;
+		}
+
+		private static double sum(double[] values) {
+			double sum = 0.;
+			for (int i = 0; i < values.length; i++) {
+				sum += values[i];
+			}
+			return sum;
+		}
+	}
+
 	/**
 	 * An amount that keeps track of its percentage of certification
 	 */
@@ -127,6 +354,45 @@ public class EnvironmentalImpactTest {
 			return new CertifiedAmount(amount.times(coefficient), coefficient * score, coefficient);
 		}
 
+		/** A mutable companion to fold many certified amounts without allocating */
+		public static final class Accumulator {
+			private final Amount.Accumulator amount;
+			private double score;
+			private double weight;
+
+			public Accumulator(String unit) {
+				this.amount = new Amount.Accumulator(unit);
+			}
+
+			public Accumulator addInPlace(CertifiedAmount other) {
+				amount.addInPlace(other.amount);
+				score += other.score;
+				weight += other.weight;
+				return this;
+			}
+
+			/** Same as adding {@code other.times(coefficient)} */
+			public Accumulator addInPlace(double coefficient, CertifiedAmount other) {
+				amount.addInPlace(coefficient, other.amount);
+				score += coefficient * other.score;
+				weight += coefficient;
+				return this;
+			}
+
+			public CertifiedAmount result() {
+				return new CertifiedAmount(amount.result(), score, weight);
+			}
+		}
+
+		void writeTo(BinaryCodec.Output out) {
+			amount.writeTo(out);
+			out.writeDouble(score).writeDouble(weight);
+		}
+
+		static CertifiedAmount readFrom(ByteBuffer in) {
+			return new CertifiedAmount(Amount.readFrom(in), BinaryCodec.readDouble(in), BinaryCodec.readDouble(in));
+		}
+
 		@Override
 		public int hashCode() {
 			return (int) (amount.hashCode() ^ doubleToLongBits(score) ^ doubleToLongBits(weight));
@@ -149,16 +415,27 @@ public class EnvironmentalImpactTest {
 	 * An amount of a physical quantity, with its unit, margin of error and
 	 * percentage of certification
 	 */
-	public static class Amount {
+	public static class Amount implements Group<Amount> {
+		// the tolerance of equality, in the base unit of the dimension
+		private static final double PRECISION = 0.01;
+
 		private final double value;
-		private final String unit;
+		private final Unit unit;
 		private final double errorMargin;
 
 		public static final Amount neutral(String unit) {
+			return neutral(Unit.of(unit));
+		}
+
+		public static final Amount neutral(Unit unit) {
 			return new Amount(0., unit, 0.);
 		}
 
 		public Amount(double value, String unit, double errorMargin) {
+			this(value, Unit.of(unit), errorMargin);
+		}
+
+		public Amount(double value, Unit unit, double errorMargin) {
 			this.value = value;
 			this.unit = unit;
 			this.errorMargin = errorMargin;
@@ -168,27 +445,95 @@ public class EnvironmentalImpactTest {
 			return this.add(other.times(coefficient));
 		}
 
+		/** @return The sum, in the unit of this amount */
 		public Amount add(Amount other) {
-			if (!unit.equals(other.unit))
+			final double factor = conversionFrom(unit, other);
+			return new Amount(value + factor * other.value, unit, errorMargin + factor * other.errorMargin);
+		}
+
+		private static double conversionFrom(Unit unit, Amount other) {
+			if (!unit.isCompatible(other.unit))
 				throw new IllegalArgumentException(
 						"Cannot add amounts of different units: " + unit + " <> " + other.unit);
-			return new Amount(value + other.value, unit, errorMargin + other.errorMargin);
+			return other.unit.factorTo(unit);
+		}
+
+		@Override
+		public Amount append(Amount other) {
+			return add(other);
+		}
+
+		@Override
+		public Amount neutral() {
+			return neutral(unit);
+		}
+
+		@Override
+		public Amount inverse() {
+			return new Amount(-value, unit, -errorMargin);
 		}
 
 		public Amount times(double coefficient) {
 			return new Amount(coefficient * value, unit, coefficient * errorMargin);
 		}
 
+		/** A mutable companion to fold many amounts without allocating */
+		public static final class Accumulator {
+			private final Unit unit;
+			private double value;
+			private double errorMargin;
+
+			public Accumulator(String unit) {
+				this.unit = Unit.of(unit);
+			}
+
+			public Accumulator addInPlace(Amount other) {
+				return addInPlace(1., other);
+			}
+
+			public Accumulator addInPlace(double coefficient, Amount other) {
+				final double factor = coefficient * conversionFrom(unit, other);
+				value += factor * other.value;
+				errorMargin += factor * other.errorMargin;
+				return this;
+			}
+
+			public Amount result() {
+				return new Amount(value, unit, errorMargin);
+			}
+		}
+
+		/** Writes the unit by its symbol, as unit ids differ from one process to another */
+		void writeTo(BinaryCodec.Output out) {
+			out.writeDouble(value).writeString(unit.toString()).writeDouble(errorMargin);
+		}
+
+		static Amount readFrom(ByteBuffer in) {
+			return new Amount(BinaryCodec.readDouble(in), BinaryCodec.readString(in), BinaryCodec.readDouble(in));
+		}
+
+		/**
+		 * @return The value in hundredths of the base unit of its dimension:
+		 *         amounts are equal when the same once rounded so, whatever
+		 *         their units, which keeps equality symmetric and transitive
+		 */
+		private long rounded(double value) {
+			return Math.round(unit.toBase(value) / PRECISION);
+		}
+
 		@Override
 		public int hashCode() {
-			return (int) (31 ^ doubleToLongBits(errorMargin) + unit.hashCode() ^ doubleToLongBits(value));
+			return (31 * unit.dimension() + Long.hashCode(rounded(value))) * 31 + Long.hashCode(rounded(errorMargin));
 		}
 
 		@Override
 		public boolean equals(Object obj) {
+			if (!(obj instanceof Amount)) {
+				return false;
+			}
 			Amount other = (Amount) obj;
-			return abs(value - other.value) <= 0.01 && unit.equals(other.unit)
-					&& abs(errorMargin - other.errorMargin) <= 0.1;
+			return unit.isCompatible(other.unit) && rounded(value) == other.rounded(other.value)
+					&& rounded(errorMargin) == other.rounded(other.errorMargin);
 		}
 
 		@Override
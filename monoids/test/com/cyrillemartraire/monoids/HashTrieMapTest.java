@@ -0,0 +1,369 @@
+package com.cyrillemartraire.monoids;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.function.BinaryOperator;
+
+import org.junit.Test;
+
+public class HashTrieMapTest {
+
+	@Test
+	public void behavesLikeAHashMap() throws Exception {
+		final Map<Object, Integer> expected = new HashMap<>();
+		HashTrieMap<Object, Integer> map = HashTrieMap.empty();
+		for (int i = 0; i < 5000; i++) {
+			// "Aa" and "BB" share their hash code, to exercise collisions
+			final Object key = i % 3 == 0 ? (i % 2 == 0 ? "Aa" : "BB") + i / 6 : i;
+			expected.put(key, i);
+			map = map.plus(key, i);
+		}
+		assertEquals(expected.size(), map.size());
+		assertEquals(expected, map);
+		assertEquals(map, expected);
+		assertEquals(expected.hashCode(), map.hashCode());
+		assertNull(map.get("missing"));
+	}
+
+	@Test
+	public void plusAllSharesUntouchedStructure() throws Exception {
+		final HashTrieMap<String, Integer> left = HashTrieMap.<String, Integer>empty().plus("a", 1).plus("b", 2);
+		final HashTrieMap<String, Integer> right = HashTrieMap.<String, Integer>empty().plus("b", 3).plus("c", 4);
+		final HashTrieMap<String, Integer> sum = left.plusAll(right, Integer::sum);
+
+		final Map<String, Integer> expected = new HashMap<>();
+		expected.put("a", 1);
+		expected.put("b", 5);
+		expected.put("c", 4);
+		assertEquals(expected, sum);
+		assertEquals(2, left.size());
+		assertSame(right, HashTrieMap.<String, Integer>empty().plusAll(right, Integer::sum));
+		assertSame(left, left.plusAll(HashTrieMap.<String, Integer>empty(), Integer::sum));
+		assertSame(left, left.plus("a", 1));
+	}
+
+	/**
+	 * An immutable hash array mapped trie: each update copies only the path
+	 * from the root to the changed entry and shares every other node with the
+	 * previous version, so layering small maps onto a large one stays cheap.
+	 */
+	public static final class HashTrieMap<K, V> extends AbstractMap<K, V> {
+
+		private static final int BITS = 5;
+		private static final int MASK = (1 << BITS) - 1;
+
+		private static final HashTrieMap<?, ?> EMPTY = new HashTrieMap<>(new BitmapNode<>(0, new Object[0]), 0);
+
+		private final Node<K, V> root;
+		private final int size;
+
+		@SuppressWarnings("unchecked")
+		public static <K, V> HashTrieMap<K, V> empty() {
+			return (HashTrieMap<K, V>) EMPTY;
+		}
+
+		@SuppressWarnings("unchecked")
+		public static <K, V> HashTrieMap<K, V> copyOf(Map<? extends K, ? extends V> map) {
+			if (map instanceof HashTrieMap) {
+				return (HashTrieMap<K, V>) map;
+			}
+			HashTrieMap<K, V> result = empty();
+			for (Map.Entry<? extends K, ? extends V> entry : map.entrySet()) {
+				result = result.plus(entry.getKey(), entry.getValue());
+			}
+			return result;
+		}
+
+		private HashTrieMap(Node<K, V> root, int size) {
+			this.root = root;
+			this.size = size;
+		}
+
+		public HashTrieMap<K, V> plus(K key, V value) {
+			return plus(key, value, (oldValue, newValue) -> newValue);
+		}
+
+		/**
+		 * @return A new map with the given entry, merged with any existing value
+		 *         of the same key; this map when nothing changes
+		 */
+		public HashTrieMap<K, V> plus(K key, V value, BinaryOperator<V> merge) {
+			final int[] added = new int[1];
+			final Node<K, V> newRoot = root.put(new Leaf<>(hash(key), key, value), 0, merge, added);
+			return newRoot == root ? this : new HashTrieMap<>(newRoot, size + added[0]);
+		}
+
+		/**
+		 * @return A new map with all the entries of the other map, merged with
+		 *         the values of this map for the keys in both
+		 */
+		public HashTrieMap<K, V> plusAll(HashTrieMap<K, V> other, BinaryOperator<V> merge) {
+			if (other.isEmpty()) {
+				return this;
+			}
+			if (isEmpty()) {
+				return other;
+			}
+			final int[] added = new int[1];
+			Node<K, V> newRoot = root;
+			for (Leaf<K, V> leaf : other.leaves()) {
+				newRoot = newRoot.put(leaf, 0, merge, added);
+			}
+			return newRoot == root ? this : new HashTrieMap<>(newRoot, size + added[0]);
+		}
+
+		@Override
+		@SuppressWarnings("unchecked")
+		public V get(Object key) {
+			final Leaf<K, V> leaf = root.find((K) key, hash(key), 0);
+			return leaf == null ? null : leaf.getValue();
+		}
+
+		@Override
+		@SuppressWarnings("unchecked")
+		public boolean containsKey(Object key) {
+			return root.find((K) key, hash(key), 0) != null;
+		}
+
+		@Override
+		public int size() {
+			return size;
+		}
+
+		@Override
+		public Set<Map.Entry<K, V>> entrySet() {
+			return new AbstractSet<Map.Entry<K, V>>() {
+				@Override
+				@SuppressWarnings({ "unchecked", "rawtypes" })
+				public Iterator<Map.Entry<K, V>> iterator() {
+					return (Iterator) leaves().iterator();
+				}
+
+				@Override
+				public int size() {
+					return size;
+				}
+			};
+		}
+
+		private Iterable<Leaf<K, V>> leaves() {
+			return () -> new LeafIterator<>(root);
+		}
+
+		private static int hash(Object key) {
+			final int h = key == null ? 0 : key.hashCode();
+			return h ^ (h >>> 16);
+		}
+
+		private static interface Node<K, V> {
+			Leaf<K, V> find(K key, int hash, int shift);
+
+			Node<K, V> put(Leaf<K, V> leaf, int shift, BinaryOperator<V> merge, int[] added);
+
+			/** The leaves and sub-nodes, in iteration order */
+			Object[] slots();
+		}
+
+		private static final class Leaf<K, V> extends AbstractMap.SimpleImmutableEntry<K, V> {
+			private static final long serialVersionUID = 1L;
+			private final int hash;
+
+			Leaf(int hash, K key, V value) {
+				super(key, value);
+				this.hash = hash;
+			}
+
+			boolean sameKey(int otherHash, Object otherKey) {
+				return hash == otherHash && (getKey() == null ? otherKey == null : getKey().equals(otherKey));
+			}
+
+			boolean sameKey(Leaf<K, V> other) {
+				return sameKey(other.hash, other.getKey());
+			}
+
+			Leaf<K, V> merge(Leaf<K, V> other, BinaryOperator<V> merge) {
+				final V value = merge.apply(getValue(), other.getValue());
+				return value == getValue() ? this : new Leaf<>(hash, getKey(), value);
+			}
+		}
+
+		private static final class BitmapNode<K, V> implements Node<K, V> {
+			private final int bitmap;
+			private final Object[] slots;
+
+			BitmapNode(int bitmap, Object[] slots) {
+				this.bitmap = bitmap;
+				this.slots = slots;
+			}
+
+			@Override
+			@SuppressWarnings("unchecked")
+			public Leaf<K, V> find(K key, int hash, int shift) {
+				final int bit = 1 << ((hash >>> shift) & MASK);
+				if ((bitmap & bit) == 0) {
+					return null;
+				}
+				final Object slot = slots[Integer.bitCount(bitmap & (bit - 1))];
+				if (slot instanceof Node) {
+					return ((Node<K, V>) slot).find(key, hash, shift + BITS);
+				}
+				final Leaf<K, V> leaf = (Leaf<K, V>) slot;
+				return leaf.sameKey(hash, key) ? leaf : null;
+			}
+
+			@Override
+			@SuppressWarnings("unchecked")
+			public Node<K, V> put(Leaf<K, V> leaf, int shift, BinaryOperator<V> merge, int[] added) {
+				final int bit = 1 << ((leaf.hash >>> shift) & MASK);
+				final int index = Integer.bitCount(bitmap & (bit - 1));
+				if ((bitmap & bit) == 0) {
+					final Object[] newSlots = new Object[slots.length + 1];
+					System.arraycopy(slots, 0, newSlots, 0, index);
+					newSlots[index] = leaf;
+					System.arraycopy(slots, index, newSlots, index + 1, slots.length - index);
+					added[0]++;
+					return new BitmapNode<>(bitmap | bit, newSlots);
+				}
+				final Object slot = slots[index];
+				final Object newSlot;
+				if (slot instanceof Node) {
+					newSlot = ((Node<K, V>) slot).put(leaf, shift + BITS, merge, added);
+				} else {
+					final Leaf<K, V> existing = (Leaf<K, V>) slot;
+					if (existing.sameKey(leaf)) {
+						newSlot = existing.merge(leaf, merge);
+					} else {
+						added[0]++;
+						newSlot = existing.hash == leaf.hash ? new CollisionNode<>(leaf.hash, existing, leaf)
+								: new BitmapNode<K, V>(0, new Object[0]).put(existing, shift + BITS, merge, new int[1])
+										.put(leaf, shift + BITS, merge, new int[1]);
+					}
+				}
+				if (newSlot == slot) {
+					return this;
+				}
+				final Object[] newSlots = slots.clone();
+				newSlots[index] = newSlot;
+				return new BitmapNode<>(bitmap, newSlots);
+			}
+
+			@Override
+			public Object[] slots() {
+				return slots;
+			}
+		}
+
+		/** The leaves of keys with exactly the same hash */
+		private static final class CollisionNode<K, V> implements Node<K, V> {
+			private final int hash;
+			private final Object[] leaves;
+
+			CollisionNode(int hash, Object... leaves) {
+				this.hash = hash;
+				this.leaves = leaves;
+			}
+
+			@Override
+			@SuppressWarnings("unchecked")
+			public Leaf<K, V> find(K key, int hash, int shift) {
+				for (Object leaf : leaves) {
+					if (((Leaf<K, V>) leaf).sameKey(hash, key)) {
+						return (Leaf<K, V>) leaf;
+					}
+				}
+				return null;
+			}
+
+			@Override
+			@SuppressWarnings("unchecked")
+			public Node<K, V> put(Leaf<K, V> leaf, int shift, BinaryOperator<V> merge, int[] added) {
+				if (leaf.hash != hash) {
+					final int bit = 1 << ((hash >>> shift) & MASK);
+					return new BitmapNode<K, V>(bit, new Object[] { this }).put(leaf, shift, merge, added);
+				}
+				for (int i = 0; i < leaves.length; i++) {
+					final Leaf<K, V> existing = (Leaf<K, V>) leaves[i];
+					if (existing.sameKey(leaf)) {
+						final Leaf<K, V> merged = existing.merge(leaf, merge);
+						if (merged == existing) {
+							return this;
+						}
+						final Object[] newLeaves = leaves.clone();
+						newLeaves[i] = merged;
+						return new CollisionNode<>(hash, newLeaves);
+					}
+				}
+				final Object[] newLeaves = new Object[leaves.length + 1];
+				System.arraycopy(leaves, 0, newLeaves, 0, leaves.length);
+				newLeaves[leaves.length] = leaf;
+				added[0]++;
+				return new CollisionNode<>(hash, newLeaves);
+			}
+
+			@Override
+			public Object[] slots() {
+				return leaves;
+			}
+		}
+
+		/** Depth-first traversal with an explicit stack of slot positions */
+		private static final class LeafIterator<K, V> implements Iterator<Leaf<K, V>> {
+			private final Deque<Object[]> nodes = new ArrayDeque<>();
+			private final Deque<Integer> positions = new ArrayDeque<>();
+			private Leaf<K, V> next;
+
+			LeafIterator(Node<K, V> root) {
+				nodes.push(root.slots());
+				positions.push(0);
+				advance();
+			}
+
+			@SuppressWarnings("unchecked")
+			private void advance() {
+				next = null;
+				while (next == null && !nodes.isEmpty()) {
+					final Object[] slots = nodes.peek();
+					final int position = positions.pop();
+					if (position == slots.length) {
+						nodes.pop();
+						continue;
+					}
+					positions.push(position + 1);
+					final Object slot = slots[position];
+					if (slot instanceof Node) {
+						nodes.push(((Node<K, V>) slot).slots());
+						positions.push(0);
+					} else {
+						next = (Leaf<K, V>) slot;
+					}
+				}
+			}
+
+			@Override
+			public boolean hasNext() {
+				return next != null;
+			}
+
+			@Override
+			public Leaf<K, V> next() {
+				if (next == null) {
+					throw new NoSuchElementException();
+				}
+				final Leaf<K, V> current = next;
+				advance();
+				return current;
+			}
+		}
+	}
+}
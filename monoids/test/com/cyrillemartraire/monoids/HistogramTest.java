@@ -2,10 +2,14 @@ package com.cyrillemartraire.monoids;
 
 import static org.junit.Assert.assertEquals;
 
+import java.nio.ByteBuffer;
 import java.util.Arrays;
 
 import org.junit.Test;
 
+import com.cyrillemartraire.monoids.BinaryCodecTest.BinaryCodec;
+import com.cyrillemartraire.monoids.NestedMonoidMapTest.Monoid;
+
 public class HistogramTest {
 
 	private static final double EPSILON = 0.00001;
@@ -38,12 +42,59 @@ public class HistogramTest {
 	}
 
 
+	@Test
+	public void parallelRollUp() throws Exception {
+		final Histogram[] points = new Histogram[10_000];
+		for (int i = 0; i < points.length; i++) {
+			points[i] = EMPTY.withPoints(i % 100);
+		}
+		final Histogram h = new ParallelReductionTest.MonoidReducer<>(EMPTY).reduce(points);
+		assertEquals(10_000, h.count());
+		assertEquals(10., h.frequencyInBin(3), EPSILON);
+	}
+
+	@Test
+	public void accumulatorInPlace() throws Exception {
+		final Histogram.Accumulator acc = new Histogram.Accumulator(10);
+		acc.addInPlace(41, 65).addInPlace(EMPTY.withPoints(65, 95));
+		assertEquals(EMPTY.withPoints(41, 65, 65, 95), acc.result());
+		acc.addInPlace(12);
+		assertEquals(EMPTY.withPoints(12, 41, 65, 65, 95), acc.result());
+	}
+
+	@Test
+	public void binsCountOtherThanTen() throws Exception {
+		final Histogram h = Histogram.empty(4).withPoints(0, 24.9, 25, 100);
+		assertEquals(50., h.frequencyInBin(0), EPSILON);
+		assertEquals(25., h.frequencyInBin(1), EPSILON);
+		assertEquals(25., h.frequencyInBin(3), EPSILON);
+	}
+
+	@Test
+	public void streamingHistogramCountsOutOfRangeValues() throws Exception {
+		final StreamingHistogram h = new StreamingHistogram(10., 20., 5);
+		h.record(10.).record(11.99).record(12.).record(20.).record(9.).record(20.01).record(Double.NaN);
+		assertEquals(7, h.count());
+		assertEquals(2, h.countInBin(0));
+		assertEquals(1, h.countInBin(1));
+		assertEquals(1, h.countInBin(4));
+		assertEquals(2, h.underflow());
+		assertEquals(1, h.overflow());
+
+		final StreamingHistogram other = new StreamingHistogram(10., 20., 5).record(19.);
+		assertEquals(2, h.addInPlace(other).countInBin(4));
+		assertEquals(25., h.frequencyInBin(0), EPSILON);
+	}
+
 	/** https://en.wikipedia.org/wiki/Histogram */
-	public static class Histogram {
+	public static class Histogram implements Monoid<Histogram> {
 
 		// split from 0 to 100 into N equal buckets
 		private final int[] buckets;
 
+		// far finer than any use of 0 to 100, so a corrupt length allocates little
+		private static final int MAX_DECODED_BUCKETS = 1 << 16;
+
 		public final static Histogram empty(final int binsCount) {
 			return new Histogram(new int[binsCount]);
 		}
@@ -56,7 +107,7 @@ public class HistogramTest {
 			final int[] bins = new int[buckets.length];
 			for (int i = 0; i < values.length; i++) {
 				final double value = values[i];
-				final int index = bucketFor(value);
+				final int index = bucketFor(value, bins.length);
 				bins[index] += 1;
 			}
 			return new Histogram(bins);
@@ -75,9 +126,9 @@ public class HistogramTest {
 			return new Histogram(buckets);
 		}
 
-		private final int bucketFor(double value) {
+		private final static int bucketFor(double value, int binsCount) {
 			isInRange(value);
-			return value == 100 ? 9 : (int) (value / 10);
+			return value == 100 ? binsCount - 1 : (int) (value * binsCount / 100);
 		}
 
 		public Histogram add(Histogram other) {
@@ -91,6 +142,80 @@ public class HistogramTest {
 			return new Histogram(bins);
 		}
 
+		@Override
+		public Histogram append(Histogram other) {
+			return add(other);
+		}
+
+		@Override
+		public Histogram neutral() {
+			return empty(size());
+		}
+
+		/** A mutable companion to fold many points without allocating */
+		public static final class Accumulator {
+			private final int[] bins;
+
+			public Accumulator(int binsCount) {
+				this.bins = new int[binsCount];
+			}
+
+			public Accumulator addInPlace(double value) {
+				bins[bucketFor(value, bins.length)] += 1;
+				return this;
+			}
+
+			public Accumulator addInPlace(double... values) {
+				for (int i = 0; i < values.length; i++) {
+					bins[bucketFor(values[i], bins.length)] += 1;
+				}
+				return this;
+			}
+
+			public Accumulator addInPlace(Histogram other) {
+				if (bins.length != other.buckets.length) {
+					throw new IllegalArgumentException("Can only add Histograms of same size");
+				}
+				for (int i = 0; i < bins.length; i++) {
+					bins[i] += other.buckets[i];
+				}
+				return this;
+			}
+
+			public Histogram result() {
+				return new Histogram(bins.clone());
+			}
+		}
+
+		/** Writes the buckets as runs of equal counts, as most are often empty */
+		void writeTo(BinaryCodec.Output out) {
+			out.writeVarLong(buckets.length);
+			int i = 0;
+			while (i < buckets.length) {
+				int run = 1;
+				while (i + run < buckets.length && buckets[i + run] == buckets[i]) {
+					run++;
+				}
+				out.writeVarLong(run).writeSignedVarLong(buckets[i]);
+				i += run;
+			}
+		}
+
+		static Histogram readFrom(ByteBuffer in) {
+			final int[] bins = new int[BinaryCodec.readLength(in, MAX_DECODED_BUCKETS, 0)];
+			int i = 0;
+			while (i < bins.length) {
+				final int start = in.position();
+				final int run = BinaryCodec.readVarInt(in);
+				if (run <= 0 || i + run > bins.length) {
+					throw BinaryCodec.malformed(start, "run of " + run + " buckets at bucket " + i);
+				}
+				Arrays.fill(bins, i, i + run, BinaryCodec.readSignedVarInt(in));
+				i += run;
+			}
+			return new Histogram(bins);
+		}
+
 		public int size() {
 			return buckets.length;
 		}
@@ -127,4 +252,89 @@ public class HistogramTest {
 		}
 
 	}
+
+	/**
+	 * A histogram that records values in place into a fixed number of equal bins
+	 * over a configurable range, with constant memory. Values below the range
+	 * (or NaN) go to an underflow bin and values above it to an overflow bin, so
+	 * recording never throws. Not thread-safe.
+	 */
+	public static class StreamingHistogram {
+
+		private final double min;
+		private final double max;
+		private final double scale;
+		private final long[] bins;
+		private long underflow;
+		private long overflow;
+
+		public StreamingHistogram(double min, double max, int binsCount) {
+			if (!(min < max) || binsCount < 1) {
+				throw new IllegalArgumentException("Need min < max and at least one bin: " + min + ", " + max + ", "
+						+ binsCount);
+			}
+			this.min = min;
+			this.max = max;
+			this.scale = binsCount / (max - min);
+			this.bins = new long[binsCount];
+		}
+
+		public StreamingHistogram record(double value) {
+			if (!(value >= min)) {
+				underflow++;
+			} else if (value > max) {
+				overflow++;
+			} else {
+				// the max itself and rounding at the upper edge fall in the last bin
+				bins[Math.min((int) ((value - min) * scale), bins.length - 1)]++;
+			}
+			return this;
+		}
+
+		public StreamingHistogram addInPlace(StreamingHistogram other) {
+			if (min != other.min || max != other.max || bins.length != other.bins.length) {
+				throw new IllegalArgumentException("Can only add Histograms of same range and size");
+			}
+			for (int i = 0; i < bins.length; i++) {
+				bins[i] += other.bins[i];
+			}
+			underflow += other.underflow;
+			overflow += other.overflow;
+			return this;
+		}
+
+		public int size() {
+			return bins.length;
+		}
+
+		public long countInBin(int binIndex) {
+			return bins[binIndex];
+		}
+
+		public long underflow() {
+			return underflow;
+		}
+
+		public long overflow() {
+			return overflow;
+		}
+
+		public long count() {
+			long count = underflow + overflow;
+			for (int i = 0; i < bins.length; i++) {
+				count += bins[i];
+			}
+			return count;
+		}
+
+		public double frequencyInBin(int binIndex) {
+			return 100. * bins[binIndex] / count();
+		}
+
+		@Override
+		public String toString() {
+			return "Histogram [" + min + ", " + max + "] " + Arrays.toString(bins) + " underflow: " + underflow
+					+ " overflow: " + overflow;
+		}
+	}
 }
@@ -0,0 +1,489 @@
+package com.cyrillemartraire.monoids;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+import org.junit.Test;
+
+import com.cyrillemartraire.monoids.BinaryCodecTest.BinaryCodec;
+
+public class HyperLogLogTest {
+
+	private static final HyperLogLog EMPTY = HyperLogLog.empty(12);
+
+	@Test
+	public void distinctSuppliersAcrossSubAssemblies() throws Exception {
+		final HyperLogLog dough = EMPTY.with("Mill", "Farm", "Salt Co");
+		final HyperLogLog tomatoSauce = EMPTY.with("Farm", "Cannery", "Salt Co");
+		final HyperLogLog pizza = dough.add(tomatoSauce).add(EMPTY.with("Oven Inc"));
+		assertEquals(5, pizza.estimate());
+		assertTrue(pizza.isSparse());
+		assertEquals(pizza, EMPTY.with("Mill", "Farm", "Salt Co", "Cannery", "Oven Inc"));
+	}
+
+	@Test
+	public void estimateWithinStandardError() throws Exception {
+		final HyperLogLog.Recorder leftRecorder = new HyperLogLog.Recorder(12);
+		final HyperLogLog.Recorder rightRecorder = new HyperLogLog.Recorder(12);
+		for (int i = 0; i < 100_000; i++) {
+			leftRecorder.record("supplier-" + i);
+			rightRecorder.record("supplier-" + (i + 50_000));
+		}
+		final HyperLogLog left = leftRecorder.result();
+		final HyperLogLog right = rightRecorder.result();
+		assertFalse(left.isSparse());
+		// standard error is 1.04 / sqrt(4096) = 1.6%, allow three of them
+		assertEquals(100_000, left.estimate(), 100_000 * 0.05);
+		assertEquals(150_000, left.add(right).estimate(), 150_000 * 0.05);
+		assertEquals(left.add(right), right.add(left));
+		assertEquals(left, left.add(left));
+	}
+
+	@Test
+	public void sparseAndDenseAddTheSame() throws Exception {
+		final HyperLogLog small = EMPTY.with("a", "b", "c");
+		HyperLogLog large = EMPTY;
+		for (int i = 0; i < 5000; i++) {
+			large = large.with(i);
+		}
+		assertEquals(large.add(small), small.add(large));
+		assertEquals(large.add(small).add(small), large.add(small.add(small)));
+		assertEquals(small, small.add(EMPTY));
+	}
+
+	@Test
+	public void recorderSameAsImmutableWith() throws Exception {
+		final HyperLogLog.Recorder recorder = new HyperLogLog.Recorder(12).addInPlace(EMPTY.with("a"));
+		HyperLogLog expected = EMPTY.with("a");
+		for (int i = 0; i < 2000; i++) {
+			recorder.record(i);
+			expected = expected.with(i);
+		}
+		assertEquals(expected, recorder.result());
+		assertEquals(expected.isSparse(), recorder.result().isSparse());
+		assertTrue(new HyperLogLog.Recorder(12).record("a").result().isSparse());
+	}
+
+	@Test
+	public void fullHashes() throws Exception {
+		// as from a 64-bit hash function, here the SplitMix64 finalizer
+		final long[] hashes = new long[1000];
+		for (int i = 0; i < hashes.length; i++) {
+			long z = (i + 1) * 0x9E3779B97F4A7C15L;
+			z = (z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L;
+			z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+			hashes[i] = z ^ (z >>> 31);
+		}
+		final HyperLogLog.Recorder recorder = new HyperLogLog.Recorder(12);
+		HyperLogLog set = EMPTY;
+		for (long hash : hashes) {
+			recorder.recordHash(hash);
+			set = set.withHash(hash);
+		}
+		assertEquals(EMPTY.withHashes(hashes), set);
+		assertEquals(set, recorder.result());
+		assertEquals(1000, set.estimate(), 1000 * 0.05);
+	}
+
+	@Test
+	public void sparseAndDenseFormsAreInterchangeable() throws Exception {
+		final HyperLogLog sparse = EMPTY.with("Mill", "Farm", "Salt Co", "Cannery");
+		final HyperLogLog dense = new HyperLogLog(12, null, HyperLogLog.dense(12, sparse.sparse));
+		assertTrue(sparse.isSparse());
+		assertFalse(dense.isSparse());
+		assertEquals(sparse, dense);
+		assertEquals(dense, sparse);
+		assertEquals(sparse.hashCode(), dense.hashCode());
+		assertEquals(dense.estimate(), sparse.estimate());
+		assertFalse(sparse.equals(new HyperLogLog(12, null, new byte[1 << 12])));
+	}
+
+	@Test
+	public void malformedEncodingsAreRejectedBeforeAllocating() throws Exception {
+		final byte[][] malformed = { { 40, 1 }, { 12, 0, (byte) 0xFF, (byte) 0xFF, 0x7F }, { 12, 0, 2, 1, 0 },
+				{ 12, 0, 1, 64 }, { 12, 1, 0, 0 } };
+		for (byte[] bytes : malformed) {
+			try {
+				HyperLogLog.readFrom(ByteBuffer.wrap(bytes));
+				fail("Read a malformed HyperLogLog: " + Arrays.toString(bytes));
+			} catch (IllegalArgumentException expected) {
+				assertTrue(expected.getMessage(), expected.getMessage().startsWith("Malformed HyperLogLog at 0"));
+			}
+		}
+	}
+
+	/**
+	 * A distinct count in constant memory, after HyperLogLog (Flajolet et al.
+	 * 2007): each value is hashed, the first p bits pick one of 2^p registers
+	 * and the register keeps the longest run of leading zeros seen in the
+	 * remaining bits. The union of two sets is the register-wise max, so it is
+	 * associative, commutative and idempotent. The standard error is about
+	 * 1.04/sqrt(2^p).
+	 * <p>
+	 * While few registers are set they are kept as a sorted array of
+	 * (index, rank) pairs instead of the full dense array. Once dense, each
+	 * {@code with} copies the registers, so record many values through a
+	 * {@link Recorder} instead.
+	 */
+	public static class HyperLogLog {
+
+		private final int precision;
+		// sorted (index << 6 | rank) when sparse, else null
+		private final int[] sparse;
+		// one rank per register when dense, else null
+		private final byte[] registers;
+
+		public final static HyperLogLog empty(int precision) {
+			checkPrecision(precision);
+			return new HyperLogLog(precision, new int[0], null);
+		}
+
+		private static void checkPrecision(int precision) {
+			if (precision < 4 || precision > 18) {
+				throw new IllegalArgumentException("Precision must be between 4 and 18: " + precision);
+			}
+		}
+
+		private HyperLogLog(int precision, int[] sparse, byte[] registers) {
+			this.precision = precision;
+			this.sparse = sparse;
+			this.registers = registers;
+		}
+
+		/**
+		 * @return this set with the given values, hashed from their hashCode,
+		 *         hence from 32 bits only; prefer {@link #withHash} for
+		 *         values with a better hash
+		 */
+		public final HyperLogLog with(Object... values) {
+			final long[] hashes = new long[values.length];
+			for (int i = 0; i < values.length; i++) {
+				hashes[i] = mix(values[i].hashCode());
+			}
+			return withHashes(hashes);
+		}
+
+		/** @return this set with the given value, already hashed on 64 well-mixed bits */
+		public final HyperLogLog withHash(long hash) {
+			return add(new HyperLogLog(precision, new int[] { entry(precision, hash) }, null));
+		}
+
+		/** @return this set with the given values, already hashed on 64 well-mixed bits */
+		public final HyperLogLog withHashes(long... hashes) {
+			final int[] entries = new int[hashes.length];
+			for (int i = 0; i < hashes.length; i++) {
+				entries[i] = entry(precision, hashes[i]);
+			}
+			return add(new HyperLogLog(precision, normalize(entries), null));
+		}
+
+		public HyperLogLog add(HyperLogLog other) {
+			if (precision != other.precision) {
+				throw new IllegalArgumentException("Can only add HyperLogLogs of same precision");
+			}
+			if (sparse != null && other.sparse != null) {
+				final int[] all = Arrays.copyOf(sparse, sparse.length + other.sparse.length);
+				System.arraycopy(other.sparse, 0, all, sparse.length, other.sparse.length);
+				final int[] merged = normalize(all);
+				return merged.length <= sparseLimit() ? new HyperLogLog(precision, merged, null)
+						: new HyperLogLog(precision, null, dense(precision, merged));
+			}
+			final byte[] max = dense();
+			final byte[] others = other.sparse == null ? other.registers : other.dense();
+			for (int i = 0; i < max.length; i++) {
+				if (others[i] > max[i]) {
+					max[i] = others[i];
+				}
+			}
+			return new HyperLogLog(precision, null, max);
+		}
+
+		/** @return the estimate, straight from the sparse pairs while sparse */
+		public long estimate() {
+			final int m = 1 << precision;
+			double sum = 0.;
+			int zeros = 0;
+			if (sparse != null) {
+				for (int entry : sparse) {
+					sum += Math.scalb(1., -(entry & 63));
+				}
+				// every register not in the pairs has a rank of 0, worth 1
+				zeros = m - sparse.length;
+				sum += zeros;
+			} else {
+				for (byte rank : registers) {
+					sum += Math.scalb(1., -rank);
+					if (rank == 0) {
+						zeros++;
+					}
+				}
+			}
+			final double estimate = alpha(m) * m * m / sum;
+			if (estimate <= 2.5 * m && zeros > 0) {
+				// linear counting is more accurate on small cardinalities
+				return Math.round(m * Math.log((double) m / zeros));
+			}
+			return Math.round(estimate);
+		}
+
+		public boolean isSparse() {
+			return sparse != null;
+		}
+
+		/** Writes the sparse pairs as deltas since they are sorted, else the raw registers */
+		void writeTo(BinaryCodec.Output out) {
+			out.writeByte(precision);
+			if (sparse != null) {
+				out.writeByte(0).writeVarLong(sparse.length);
+				int previous = 0;
+				for (int entry : sparse) {
+					out.writeVarLong(entry - previous);
+					previous = entry;
+				}
+			} else {
+				out.writeByte(1);
+				for (byte rank : registers) {
+					out.writeByte(rank);
+				}
+			}
+		}
+
+		/** Checks the precision, the count and each pair or rank before allocating */
+		static HyperLogLog readFrom(ByteBuffer in) {
+			final int start = in.position();
+			final int precision = in.get();
+			if (precision < 4 || precision > 18) {
+				throw new IllegalArgumentException("Malformed HyperLogLog at " + start + ": precision " + precision);
+			}
+			final int maxRank = 64 - precision + 1;
+			if (in.get() == 0) {
+				final long length = BinaryCodec.readVarLong(in);
+				if (length > sparseLimit(precision) || length > in.remaining()) {
+					throw new IllegalArgumentException("Malformed HyperLogLog at " + start + ": " + length + " pairs");
+				}
+				final int[] sparse = new int[(int) length];
+				long entry = 0;
+				for (int i = 0; i < sparse.length; i++) {
+					entry += BinaryCodec.readVarLong(in);
+					final long index = entry >>> 6;
+					final long rank = entry & 63;
+					if (index >= 1 << precision || rank == 0 || rank > maxRank || i > 0 && index <= sparse[i - 1] >>> 6) {
+						throw new IllegalArgumentException("Malformed HyperLogLog at " + start + ": pair " + entry);
+					}
+					sparse[i] = (int) entry;
+				}
+				return new HyperLogLog(precision, sparse, null);
+			}
+			if (in.remaining() < 1 << precision) {
+				throw new IllegalArgumentException("Malformed HyperLogLog at " + start + ": truncated registers");
+			}
+			final byte[] registers = new byte[1 << precision];
+			in.get(registers);
+			for (byte rank : registers) {
+				if (rank < 0 || rank > maxRank) {
+					throw new IllegalArgumentException("Malformed HyperLogLog at " + start + ": rank " + rank);
+				}
+			}
+			return new HyperLogLog(precision, null, registers);
+		}
+
+		private int sparseLimit() {
+			return sparseLimit(precision);
+		}
+
+		private static int sparseLimit(int precision) {
+			// beyond this the pairs take more memory than the dense registers
+			return (1 << precision) / 4;
+		}
+
+		/** @return the pair of the register index and rank of this hash */
+		private static int entry(int precision, long hash) {
+			final int index = (int) (hash >>> (64 - precision));
+			final int rank = Long.numberOfLeadingZeros((hash << precision) | (1L << (precision - 1))) + 1;
+			return index << 6 | rank;
+		}
+
+		private byte[] dense() {
+			return sparse == null ? registers.clone() : dense(precision, sparse);
+		}
+
+		private static byte[] dense(int precision, int[] sparse) {
+			final byte[] registers = new byte[1 << precision];
+			for (int entry : sparse) {
+				registers[entry >>> 6] = (byte) (entry & 63);
+			}
+			return registers;
+		}
+
+		/** Sorts the pairs and keeps only the highest rank of each index */
+		private static int[] normalize(int[] entries) {
+			Arrays.sort(entries);
+			int length = 0;
+			for (int i = 0; i < entries.length; i++) {
+				if (length > 0 && entries[length - 1] >>> 6 == entries[i] >>> 6) {
+					length--;
+				}
+				entries[length++] = entries[i];
+			}
+			return Arrays.copyOf(entries, length);
+		}
+
+		private static double alpha(int m) {
+			switch (m) {
+			case 16:
+				return 0.673;
+			case 32:
+				return 0.697;
+			case 64:
+				return 0.709;
+			default:
+				return 0.7213 / (1. + 1.079 / m);
+			}
+		}
+
+		/** The 64-bit finalizer of MurmurHash3, to spread a 32-bit hashCode */
+		private static long mix(long h) {
+			h ^= h >>> 33;
+			h *= 0xff51afd7ed558ccdL;
+			h ^= h >>> 33;
+			h *= 0xc4ceb9fe1a85ec53L;
+			h ^= h >>> 33;
+			return h;
+		}
+
+		/** A mutable companion to record values in O(1) into dense registers */
+		public static final class Recorder {
+			private final int precision;
+			private final byte[] registers;
+
+			public Recorder(int precision) {
+				checkPrecision(precision);
+				this.precision = precision;
+				this.registers = new byte[1 << precision];
+			}
+
+			/** Records a value hashed from its hashCode, see {@link HyperLogLog#with} */
+			public Recorder record(Object value) {
+				return recordHash(mix(value.hashCode()));
+			}
+
+			/** Records a value already hashed on 64 well-mixed bits */
+			public Recorder recordHash(long hash) {
+				final int entry = entry(precision, hash);
+				final int index = entry >>> 6;
+				final byte rank = (byte) (entry & 63);
+				if (rank > registers[index]) {
+					registers[index] = rank;
+				}
+				return this;
+			}
+
+			public Recorder addInPlace(HyperLogLog other) {
+				if (precision != other.precision) {
+					throw new IllegalArgumentException("Can only add HyperLogLogs of same precision");
+				}
+				if (other.sparse != null) {
+					for (int entry : other.sparse) {
+						final byte rank = (byte) (entry & 63);
+						if (rank > registers[entry >>> 6]) {
+							registers[entry >>> 6] = rank;
+						}
+					}
+				} else {
+					for (int i = 0; i < registers.length; i++) {
+						if (other.registers[i] > registers[i]) {
+							registers[i] = other.registers[i];
+						}
+					}
+				}
+				return this;
+			}
+
+			/** @return the recorded set, sparse while few registers are set */
+			public HyperLogLog result() {
+				int set = 0;
+				for (byte rank : registers) {
+					if (rank != 0) {
+						set++;
+					}
+				}
+				if (set > sparseLimit(precision)) {
+					return new HyperLogLog(precision, null, registers.clone());
+				}
+				final int[] entries = new int[set];
+				int length = 0;
+				for (int i = 0; i < registers.length; i++) {
+					if (registers[i] != 0) {
+						entries[length++] = i << 6 | registers[i];
+					}
+				}
+				return new HyperLogLog(precision, entries, null);
+			}
+		}
+
+		/** Over the set registers in order of index, the same sparse or dense */
+		@Override
+		public int hashCode() {
+			int hash = precision;
+			if (sparse != null) {
+				for (int entry : sparse) {
+					hash = 31 * hash + entry;
+				}
+			} else {
+				for (int i = 0; i < registers.length; i++) {
+					if (registers[i] != 0) {
+						hash = 31 * hash + (i << 6 | registers[i]);
+					}
+				}
+			}
+			return hash;
+		}
+
+		@Override
+		public boolean equals(Object obj) {
+			if (this == obj) {
+				return true;
+			}
+			if (!(obj instanceof HyperLogLog)) {
+				return false;
+			}
+			final HyperLogLog other = (HyperLogLog) obj;
+			if (precision != other.precision) {
+				return false;
+			}
+			if (sparse != null && other.sparse != null) {
+				return Arrays.equals(sparse, other.sparse);
+			}
+			if (sparse == null && other.sparse == null) {
+				return Arrays.equals(registers, other.registers);
+			}
+			return sparse != null ? sameRegisters(sparse, other.registers) : sameRegisters(other.sparse, registers);
+		}
+
+		/** @return true if the dense registers have exactly the ranks of the sparse pairs */
+		private static boolean sameRegisters(int[] sparse, byte[] registers) {
+			int next = 0;
+			for (int i = 0; i < registers.length; i++) {
+				if (next < sparse.length && sparse[next] >>> 6 == i) {
+					if (registers[i] != (sparse[next++] & 63)) {
+						return false;
+					}
+				} else if (registers[i] != 0) {
+					return false;
+				}
+			}
+			return true;
+		}
+
+		@Override
+		public String toString() {
+			return "HyperLogLog(~" + estimate() + " distinct, precision " + precision
+					+ (isSparse() ? ", sparse)" : ")");
+		}
+	}
+}
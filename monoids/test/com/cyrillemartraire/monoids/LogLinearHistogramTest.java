@@ -0,0 +1,270 @@
+package com.cyrillemartraire.monoids;
+
+import static org.junit.Assert.assertEquals;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+import org.junit.Test;
+
+import com.cyrillemartraire.monoids.BinaryCodecTest.BinaryCodec;
+
+public class LogLinearHistogramTest {
+
+	private static final LogLinearHistogram EMPTY = LogLinearHistogram.empty(2);
+
+	@Test
+	public void percentilesWithinSignificantDigits() throws Exception {
+		final LogLinearHistogram.Recorder recorder = new LogLinearHistogram.Recorder(2);
+		for (long value = 1; value <= 10_000; value++) {
+			recorder.record(value);
+		}
+		final LogLinearHistogram h = recorder.result();
+		assertEquals(10_000, h.count());
+		assertEquals(5000, h.percentile(50), 5000 * 0.01);
+		assertEquals(9900, h.percentile(99), 9900 * 0.01);
+		assertEquals(10_000, h.valueAtQuantile(1.), 10_000 * 0.01);
+		assertEquals(1, h.valueAtQuantile(0.));
+	}
+
+	@Test
+	public void exactBelowTheLinearRange() throws Exception {
+		final LogLinearHistogram h = EMPTY.withValues(0, 3, 3, 7, 100);
+		assertEquals(0, h.valueAtQuantile(0.2));
+		assertEquals(3, h.percentile(60));
+		assertEquals(7, h.percentile(80));
+		assertEquals(100, h.percentile(100));
+	}
+
+	@Test
+	public void addIsLossless() throws Exception {
+		final LogLinearHistogram low = EMPTY.withValues(1, 20, 300);
+		final LogLinearHistogram high = EMPTY.withValues(4_000, 50_000_000_000L);
+		assertEquals(EMPTY.withValues(1, 20, 300, 4_000, 50_000_000_000L), low.add(high));
+		assertEquals(low.add(high), high.add(low));
+		assertEquals(low, low.add(EMPTY));
+		assertEquals(low, EMPTY.add(low));
+	}
+
+	/**
+	 * A histogram of non-negative long values (e.g. latencies in microseconds)
+	 * with log-linear buckets, in the manner of HdrHistogram: each power of two
+	 * is split into enough linear sub-buckets to keep the given number of
+	 * significant decimal digits, so percentiles stay accurate on long-tailed
+	 * data. Adding two histograms just sums the counts, hence loses nothing.
+	 */
+	public static class LogLinearHistogram {
+
+		private final int significantDigits;
+		private final long[] counts;
+
+		public final static LogLinearHistogram empty(int significantDigits) {
+			return new LogLinearHistogram(significantDigits, new long[0]);
+		}
+
+		private LogLinearHistogram(int significantDigits, long[] counts) {
+			if (significantDigits < 1 || significantDigits > 5) {
+				throw new IllegalArgumentException("Significant digits must be between 1 and 5: " + significantDigits);
+			}
+			this.significantDigits = significantDigits;
+			this.counts = trim(counts);
+		}
+
+		public final LogLinearHistogram withValues(long... values) {
+			final Recorder recorder = new Recorder(significantDigits).addInPlace(this);
+			for (long value : values) {
+				recorder.record(value);
+			}
+			return recorder.result();
+		}
+
+		public LogLinearHistogram add(LogLinearHistogram other) {
+			if (significantDigits != other.significantDigits) {
+				throw new IllegalArgumentException("Can only add Histograms of same significant digits");
+			}
+			final long[] sum = Arrays.copyOf(counts, Math.max(counts.length, other.counts.length));
+			for (int i = 0; i < other.counts.length; i++) {
+				sum[i] += other.counts[i];
+			}
+			return new LogLinearHistogram(significantDigits, sum);
+		}
+
+		public long count() {
+			long count = 0;
+			for (long c : counts) {
+				count += c;
+			}
+			return count;
+		}
+
+		/** @return the value below which the given percent (0 to 100) of the values fall */
+		public long percentile(double percent) {
+			return valueAtQuantile(percent / 100.);
+		}
+
+		/**
+		 * @return the highest value equivalent to the value at the given quantile
+		 *         (0 to 1), within the precision of the significant digits
+		 */
+		public long valueAtQuantile(double quantile) {
+			if (quantile < 0. || quantile > 1.) {
+				throw new IllegalArgumentException("Quantile must be between 0 and 1: " + quantile);
+			}
+			final long rank = Math.max(1, (long) Math.ceil(quantile * count()));
+			final Layout layout = Layout.of(significantDigits);
+			long cumulated = 0;
+			for (int i = 0; i < counts.length; i++) {
+				cumulated += counts[i];
+				if (cumulated >= rank) {
+					return layout.highestEquivalentValue(i);
+				}
+			}
+			return 0;
+		}
+
+		/** Writes the counts as runs of equal counts, as most are often empty */
+		void writeTo(BinaryCodec.Output out) {
+			out.writeByte(significantDigits).writeVarLong(counts.length);
+			int i = 0;
+			while (i < counts.length) {
+				int run = 1;
+				while (i + run < counts.length && counts[i + run] == counts[i]) {
+					run++;
+				}
+				out.writeVarLong(run).writeVarLong(counts[i]);
+				i += run;
+			}
+		}
+
+		static LogLinearHistogram readFrom(ByteBuffer in) {
+			final int significantDigits = in.get();
+			if (significantDigits < 1 || significantDigits > 5) {
+				throw BinaryCodec.malformed(in.position() - 1, "significant digits " + significantDigits);
+			}
+			// a run takes no less than 2 bytes, but may cover many counts
+			final int maxLength = Layout.of(significantDigits).indexOf(Long.MAX_VALUE) + 1;
+			final long[] counts = new long[BinaryCodec.readLength(in, maxLength, 0)];
+			int i = 0;
+			while (i < counts.length) {
+				final int start = in.position();
+				final int run = BinaryCodec.readVarInt(in);
+				if (run <= 0 || i + run > counts.length) {
+					throw BinaryCodec.malformed(start, "run of " + run + " counts at count " + i);
+				}
+				Arrays.fill(counts, i, i + run, BinaryCodec.readVarLong(in));
+				i += run;
+			}
+			return new LogLinearHistogram(significantDigits, counts);
+		}
+
+		private static long[] trim(long[] counts) {
+			int length = counts.length;
+			while (length > 0 && counts[length - 1] == 0) {
+				length--;
+			}
+			return length == counts.length ? counts : Arrays.copyOf(counts, length);
+		}
+
+		/** A mutable companion to record values in O(1) without allocating */
+		public static final class Recorder {
+			private final int significantDigits;
+			private final Layout layout;
+			private long[] counts;
+
+			public Recorder(int significantDigits) {
+				this.significantDigits = significantDigits;
+				this.layout = Layout.of(significantDigits);
+				this.counts = new long[layout.subBucketCount];
+			}
+
+			public Recorder record(long value) {
+				if (value < 0) {
+					throw new IllegalArgumentException("Value must be positive: " + value);
+				}
+				final int index = layout.indexOf(value);
+				if (index >= counts.length) {
+					counts = Arrays.copyOf(counts, Math.max(index + 1, 2 * counts.length));
+				}
+				counts[index]++;
+				return this;
+			}
+
+			public Recorder addInPlace(LogLinearHistogram other) {
+				if (significantDigits != other.significantDigits) {
+					throw new IllegalArgumentException("Can only add Histograms of same significant digits");
+				}
+				if (other.counts.length > counts.length) {
+					counts = Arrays.copyOf(counts, other.counts.length);
+				}
+				for (int i = 0; i < other.counts.length; i++) {
+					counts[i] += other.counts[i];
+				}
+				return this;
+			}
+
+			public LogLinearHistogram result() {
+				return new LogLinearHistogram(significantDigits, counts.clone());
+			}
+		}
+
+		/** The mapping between values and count indexes */
+		private static final class Layout {
+			private static final Layout[] LAYOUTS = new Layout[6];
+
+			private final int subBucketCount;
+			private final int subBucketHalfCount;
+			private final int subBucketHalfCountMagnitude;
+			private final long subBucketMask;
+
+			static synchronized Layout of(int significantDigits) {
+				if (LAYOUTS[significantDigits] == null) {
+					LAYOUTS[significantDigits] = new Layout(significantDigits);
+				}
+				return LAYOUTS[significantDigits];
+			}
+
+			private Layout(int significantDigits) {
+				final long largestSingleUnitResolution = 2 * (long) Math.pow(10, significantDigits);
+				final int subBucketCountMagnitude = (int) Math.ceil(Math.log(largestSingleUnitResolution) / Math.log(2));
+				this.subBucketHalfCountMagnitude = subBucketCountMagnitude - 1;
+				this.subBucketCount = 1 << subBucketCountMagnitude;
+				this.subBucketHalfCount = subBucketCount / 2;
+				this.subBucketMask = subBucketCount - 1;
+			}
+
+			int indexOf(long value) {
+				final int bucketIndex = 63 - subBucketHalfCountMagnitude - Long.numberOfLeadingZeros(value | subBucketMask);
+				final int subBucketIndex = (int) (value >>> bucketIndex);
+				return ((bucketIndex + 1) << subBucketHalfCountMagnitude) + subBucketIndex - subBucketHalfCount;
+			}
+
+			long highestEquivalentValue(int index) {
+				int bucketIndex = (index >> subBucketHalfCountMagnitude) - 1;
+				int subBucketIndex = (index & (subBucketHalfCount - 1)) + subBucketHalfCount;
+				if (bucketIndex < 0) {
+					subBucketIndex -= subBucketHalfCount;
+					bucketIndex = 0;
+				}
+				final long lowestEquivalentValue = (long) subBucketIndex << bucketIndex;
+				return lowestEquivalentValue + (1L << bucketIndex) - 1;
+			}
+		}
+
+		@Override
+		public int hashCode() {
+			return Arrays.hashCode(counts) ^ significantDigits;
+		}
+
+		@Override
+		public boolean equals(Object obj) {
+			final LogLinearHistogram other = (LogLinearHistogram) obj;
+			return significantDigits == other.significantDigits && Arrays.equals(counts, other.counts);
+		}
+
+		@Override
+		public String toString() {
+			return "LogLinearHistogram(" + count() + " values, p50: " + percentile(50) + ", p99: " + percentile(99)
+					+ ", max: " + percentile(100) + ")";
+		}
+	}
+}
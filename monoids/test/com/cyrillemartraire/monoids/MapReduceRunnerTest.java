@@ -0,0 +1,454 @@
+package com.cyrillemartraire.monoids;
+
+import static java.util.Arrays.asList;
+import static org.junit.Assert.assertEquals;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import com.cyrillemartraire.monoids.AverageTest.Average;
+import com.cyrillemartraire.monoids.BinaryCodecTest.BinaryCodec;
+import com.cyrillemartraire.monoids.NestedMonoidMapTest.ConcatenativeString;
+import com.cyrillemartraire.monoids.NestedMonoidMapTest.Monoid;
+
+public class MapReduceRunnerTest {
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	@Test
+	public void sameAsInASingleProcess() throws Exception {
+		final List<Path> files = new ArrayList<>();
+		final Average.Accumulator expected = new Average.Accumulator();
+		for (int f = 0; f < 7; f++) {
+			final List<String> lines = new ArrayList<>();
+			for (int i = 0; i < 100; i++) {
+				lines.add(Integer.toString(f * i));
+				expected.addInPlace(f * i);
+			}
+			files.add(Files.write(folder.getRoot().toPath().resolve("values-" + f + ".txt"), lines));
+		}
+		assertEquals(expected.result(), new MapReduceRunner(3).run(AverageOfLines.class, files));
+	}
+
+	@Test
+	public void keepsTheOrderOfFiles() throws Exception {
+		final List<Path> files = new ArrayList<>();
+		for (String letter : "abcde".split("")) {
+			files.add(Files.write(folder.getRoot().toPath().resolve(letter + ".txt"), asList(letter, letter)));
+		}
+		assertEquals(new ConcatenativeString("aabbccddee"), new MapReduceRunner(2).run(ConcatenationOfLines.class, files));
+		assertEquals(new ConcatenativeString(""), new MapReduceRunner(2).run(ConcatenationOfLines.class, new ArrayList<>()));
+	}
+
+	@Test
+	public void splitsLargeFilesAcrossWorkers() throws Exception {
+		final List<String> lines = new ArrayList<>();
+		final StringBuilder expected = new StringBuilder();
+		for (int i = 0; i < 1000; i++) {
+			// lines of varying lengths, so that ranges cut them anywhere
+			lines.add(i + "," + "xyz".substring(i % 3));
+			expected.append(lines.get(i));
+		}
+		final Path file = Files.write(folder.getRoot().toPath().resolve("lines.txt"), lines);
+		final Path empty = Files.write(folder.getRoot().toPath().resolve("empty.txt"), new byte[0]);
+		assertEquals(new ConcatenativeString(expected.toString()),
+				new MapReduceRunner(4).run(ConcatenationOfLines.class, asList(empty, file, empty)));
+	}
+
+	@Test(expected = IOException.class)
+	public void workerTimingOutFailsTheRun() throws Exception {
+		final Path file = Files.write(folder.getRoot().toPath().resolve("values.txt"), asList("1"));
+		new MapReduceRunner(1, 1, TimeUnit.SECONDS).run(SlowAverageOfLines.class, asList(file));
+	}
+
+	@Test(expected = IOException.class)
+	public void failingWorkerFailsTheRun() throws Exception {
+		final Path file = Files.write(folder.getRoot().toPath().resolve("values.txt"), asList("1", "two"));
+		new MapReduceRunner(1).run(AverageOfLines.class, asList(file));
+	}
+
+	@Test(expected = IOException.class, timeout = 30_000)
+	public void failingWorkerFailsTheRunWithoutWaitingForTheOthers() throws Exception {
+		final Path slow = Files.write(folder.getRoot().toPath().resolve("slow.txt"), asList("slow"));
+		final Path failing = Files.write(folder.getRoot().toPath().resolve("failing.txt"), asList("two"));
+		new MapReduceRunner(2).run(SlowOrFailingAverageOfLines.class, asList(slow, failing));
+	}
+
+	@Test
+	public void mergesPartialsInOrderWhateverTheOrderTheyArriveIn() throws Exception {
+		final MapReduceRunner.Partials<ConcatenativeString> partials = new MapReduceRunner.Partials<>();
+		for (int i : new int[] { 3, 1, 0, 5, 4, 2 }) {
+			partials.add(i, new ConcatenativeString(String.valueOf((char) ('a' + i))));
+		}
+		assertEquals(new ConcatenativeString("abcdef"), partials.result());
+	}
+
+	public static final class AverageOfLines implements LineMapper<Average> {
+		@Override
+		public Average neutral() {
+			return Average.NEUTRAL;
+		}
+
+		@Override
+		public Average map(String line) {
+			return Average.of(Integer.parseInt(line));
+		}
+	}
+
+	public static final class SlowAverageOfLines implements LineMapper<Average> {
+		@Override
+		public Average neutral() {
+			return Average.NEUTRAL;
+		}
+
+		@Override
+		public Average map(String line) {
+			try {
+				Thread.sleep(60_000);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+			return Average.of(Integer.parseInt(line));
+		}
+	}
+
+	public static final class SlowOrFailingAverageOfLines implements LineMapper<Average> {
+		@Override
+		public Average neutral() {
+			return Average.NEUTRAL;
+		}
+
+		@Override
+		public Average map(String line) {
+			if (line.equals("slow")) {
+				try {
+					Thread.sleep(60_000);
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				}
+				return Average.NEUTRAL;
+			}
+			return Average.of(Integer.parseInt(line));
+		}
+	}
+
+	public static final class ConcatenationOfLines implements LineMapper<ConcatenativeString> {
+		@Override
+		public ConcatenativeString neutral() {
+			return new ConcatenativeString("");
+		}
+
+		@Override
+		public ConcatenativeString map(String line) {
+			return new ConcatenativeString(line);
+		}
+	}
+
+	/**
+	 * Maps each line of input to a monoid value; the values of a partition are
+	 * appended in order. Implementations need a public no-arg constructor to be
+	 * instantiated in the worker processes, and values the
+	 * {@link BinaryCodec} can encode.
+	 */
+	public static interface LineMapper<T extends Monoid<T>> {
+		T neutral();
+
+		T map(String line);
+	}
+
+	/**
+	 * Runs a map-reduce over files on local worker JVMs, each with its own heap:
+	 * the bytes of the files are split into contiguous ranges of about the same
+	 * size, one per worker, each worker appends the mapped values of the lines
+	 * that start in its range and writes its partial aggregate in binary to a
+	 * file of its own, and each partial aggregate is appended to those of the
+	 * neighbouring ranges as soon as its worker exits. Since the ranges keep
+	 * the order of the files and lines, non-commutative monoids work too.
+	 * <p>
+	 * The standard output and error of the workers are inherited, so that
+	 * their logs do not get mixed with their results. The run fails as soon as
+	 * any worker fails, and workers still running then or at the timeout are
+	 * destroyed.
+	 */
+	public static final class MapReduceRunner {
+
+		private static final long DEFAULT_TIMEOUT_MINUTES = 60;
+		private static final long POLL_MILLIS = 10;
+
+		private final int workers;
+		private final long timeoutNanos;
+		private final List<String> jvmOptions;
+
+		public MapReduceRunner(int workers, String... jvmOptions) {
+			this(workers, DEFAULT_TIMEOUT_MINUTES, TimeUnit.MINUTES, jvmOptions);
+		}
+
+		public MapReduceRunner(int workers, long timeout, TimeUnit unit, String... jvmOptions) {
+			if (workers < 1) {
+				throw new IllegalArgumentException("At least one worker is required: " + workers);
+			}
+			this.workers = workers;
+			this.timeoutNanos = unit.toNanos(timeout);
+			this.jvmOptions = asList(jvmOptions);
+		}
+
+		public <T extends Monoid<T>> T run(Class<? extends LineMapper<T>> mapper, List<Path> files)
+				throws IOException, InterruptedException {
+			final T neutral = MapReduceRunner.<T> newMapper(mapper.getName()).neutral();
+			final long deadline = System.nanoTime() + timeoutNanos;
+			final List<Process> processes = new ArrayList<>();
+			final List<Path> outputs = new ArrayList<>();
+			try {
+				for (List<Range> partition : partitions(files)) {
+					final Path output = Files.createTempFile("partial-", ".bin");
+					outputs.add(output);
+					processes.add(start(mapper, output, partition));
+				}
+				final Partials<T> partials = new Partials<>();
+				final List<Integer> running = new ArrayList<>();
+				for (int i = 0; i < processes.size(); i++) {
+					running.add(i);
+				}
+				while (!running.isEmpty()) {
+					boolean exited = false;
+					for (Iterator<Integer> it = running.iterator(); it.hasNext();) {
+						final int i = it.next();
+						final Process process = processes.get(i);
+						if (process.isAlive()) {
+							continue;
+						}
+						if (process.exitValue() != 0) {
+							throw new IOException("Worker " + i + " failed with exit code " + process.exitValue());
+						}
+						@SuppressWarnings("unchecked")
+						final T partial = (T) BinaryCodec.decode(ByteBuffer.wrap(Files.readAllBytes(outputs.get(i))));
+						Files.delete(outputs.get(i));
+						partials.add(i, partial);
+						it.remove();
+						exited = true;
+					}
+					if (!running.isEmpty() && !exited) {
+						if (System.nanoTime() - deadline > 0) {
+							throw new IOException("Worker timed out after " + timeoutNanos / 1_000_000 + " ms");
+						}
+						Thread.sleep(POLL_MILLIS);
+					}
+				}
+				return partials.isEmpty() ? neutral : partials.result();
+			} finally {
+				for (Process process : processes) {
+					process.destroyForcibly();
+				}
+				for (Path output : outputs) {
+					Files.deleteIfExists(output);
+				}
+			}
+		}
+
+		/**
+		 * The partial aggregates received so far, kept as the append of each
+		 * run of consecutive partitions, so that a partial is merged into its
+		 * neighbours as soon as it arrives, in order
+		 */
+		private static final class Partials<T extends Monoid<T>> {
+			// the append of each run, by the index of its first partition
+			private final TreeMap<Integer, T> runs = new TreeMap<>();
+			// the index after the last partition of each run, by its first
+			private final Map<Integer, Integer> ends = new HashMap<>();
+
+			void add(int index, T partial) {
+				int start = index;
+				int end = index + 1;
+				T value = partial;
+				final Map.Entry<Integer, T> previous = runs.lowerEntry(index);
+				if (previous != null && ends.get(previous.getKey()) == index) {
+					start = previous.getKey();
+					value = previous.getValue().append(value);
+					runs.remove(start);
+				}
+				final T next = runs.remove(end);
+				if (next != null) {
+					value = value.append(next);
+					end = ends.remove(end);
+				}
+				runs.put(start, value);
+				ends.put(start, end);
+			}
+
+			boolean isEmpty() {
+				return runs.isEmpty();
+			}
+
+			/** @return the append of all the partials, once they all arrived */
+			T result() {
+				if (runs.size() != 1) {
+					throw new IllegalStateException(runs.size() + " runs of partials are not merged yet");
+				}
+				return runs.firstEntry().getValue();
+			}
+		}
+
+		/** Splits the total bytes evenly, a range ending where the next one starts */
+		private List<List<Range>> partitions(List<Path> files) throws IOException {
+			long total = 0;
+			for (Path file : files) {
+				total += Files.size(file);
+			}
+			final List<List<Range>> partitions = new ArrayList<>();
+			if (total == 0) {
+				return partitions;
+			}
+			final int count = (int) Math.min(workers, total);
+			int f = 0;
+			long offset = 0;
+			long fileStart = 0;
+			for (int p = 0; p < count; p++) {
+				final long end = (p + 1) * total / count;
+				final List<Range> partition = new ArrayList<>();
+				while (offset < end) {
+					final long fileEnd = fileStart + Files.size(files.get(f));
+					final long rangeEnd = Math.min(end, fileEnd);
+					if (rangeEnd > offset) {
+						partition.add(new Range(files.get(f), offset - fileStart, rangeEnd - fileStart));
+					}
+					offset = rangeEnd;
+					if (offset == fileEnd) {
+						fileStart = fileEnd;
+						f++;
+					}
+				}
+				partitions.add(partition);
+			}
+			return partitions;
+		}
+
+		private Process start(Class<?> mapper, Path output, List<Range> partition) throws IOException {
+			final List<String> command = new ArrayList<>();
+			command.add(Paths.get(System.getProperty("java.home"), "bin", "java").toString());
+			command.addAll(jvmOptions);
+			command.add("-cp");
+			command.add(System.getProperty("java.class.path"));
+			command.add(Worker.class.getName());
+			command.add(mapper.getName());
+			command.add(output.toAbsolutePath().toString());
+			for (Range range : partition) {
+				command.add(range.file.toAbsolutePath().toString());
+				command.add(Long.toString(range.start));
+				command.add(Long.toString(range.end));
+			}
+			return new ProcessBuilder(command).inheritIO().start();
+		}
+
+		@SuppressWarnings("unchecked")
+		private static <T extends Monoid<T>> LineMapper<T> newMapper(String className) {
+			try {
+				return (LineMapper<T>) Class.forName(className).newInstance();
+			} catch (ReflectiveOperationException e) {
+				throw new IllegalArgumentException("Cannot instantiate mapper " + className, e);
+			}
+		}
+
+		/** The bytes from start inclusive to end exclusive of a file */
+		private static final class Range {
+			private final Path file;
+			private final long start;
+			private final long end;
+
+			Range(Path file, long start, long end) {
+				this.file = file;
+				this.start = start;
+				this.end = end;
+			}
+		}
+
+		/**
+		 * The entry point of a worker process: a mapper class name, the file to
+		 * write the result to, then the file, start and end of each of its
+		 * ranges
+		 */
+		public static final class Worker {
+
+			public static void main(String[] args) throws IOException {
+				final LineMapper<?> mapper = newMapper(args[0]);
+				final ByteBuffer result = BinaryCodec.encode(aggregate(mapper, args));
+				try (FileChannel out = FileChannel.open(Paths.get(args[1]), StandardOpenOption.WRITE,
+						StandardOpenOption.TRUNCATE_EXISTING)) {
+					while (result.hasRemaining()) {
+						out.write(result);
+					}
+				}
+			}
+
+			private static <T extends Monoid<T>> T aggregate(LineMapper<T> mapper, String[] args) throws IOException {
+				T partial = mapper.neutral();
+				for (int i = 2; i < args.length; i += 3) {
+					partial = aggregate(mapper, partial, new Range(Paths.get(args[i]), Long.parseLong(args[i + 1]),
+							Long.parseLong(args[i + 2])));
+				}
+				return partial;
+			}
+
+			/**
+			 * Appends the lines that start within the range: a line cut by the
+			 * start belongs to the previous range, which reads it past its end
+			 */
+			private static <T extends Monoid<T>> T aggregate(LineMapper<T> mapper, T partial, Range range)
+					throws IOException {
+				try (FileChannel channel = FileChannel.open(range.file, StandardOpenOption.READ)) {
+					long position = Math.max(0, range.start - 1);
+					channel.position(position);
+					final InputStream in = new BufferedInputStream(Channels.newInputStream(channel));
+					if (range.start > 0) {
+						// skip the rest of a line started before the range
+						int b;
+						do {
+							b = in.read();
+							position++;
+						} while (b != -1 && b != '\n');
+					}
+					final ByteArrayOutputStream line = new ByteArrayOutputStream();
+					while (position < range.end) {
+						line.reset();
+						int b;
+						while ((b = in.read()) != -1 && b != '\n') {
+							line.write(b);
+						}
+						position += line.size() + (b == -1 ? 0 : 1);
+						if (b == -1 && line.size() == 0) {
+							break;
+						}
+						final String text = new String(line.toByteArray(), StandardCharsets.UTF_8);
+						partial = partial.append(mapper.map(trimCarriageReturn(text)));
+					}
+				}
+				return partial;
+			}
+
+			private static String trimCarriageReturn(String line) {
+				return line.endsWith("\r") ? line.substring(0, line.length() - 1) : line;
+			}
+		}
+	}
+}
@@ -7,6 +7,8 @@ import java.util.Map;
 
 import org.junit.Test;
 
+import com.cyrillemartraire.monoids.HashTrieMapTest.HashTrieMap;
+
 public class MonoidMapTest {
 
 	@Test
@@ -57,24 +59,23 @@ public class MonoidMapTest {
 	 * always wins (overwrites)
 	 */
 	public static class MonoidMap {
-		private final Map<String, Object> config;
+		private final HashTrieMap<String, Object> config;
 
 		public MonoidMap() {
-			this(new HashMap<String, Object>());
+			this(HashTrieMap.<String, Object>empty());
 		}
 
 		public MonoidMap(Map<String, Object> config) {
-			this.config = config;
+			this.config = HashTrieMap.copyOf(config);
 		}
 
 		/**
 		 * @return A new map with values merged with the other map, where the
 		 *         other map values win. It's associative but not commutative.
+		 *         Only the paths to the keys of the other map are copied.
 		 */
 		public MonoidMap append(MonoidMap other) {
-			final Map<String, Object> map = new HashMap<String, Object>(config);
-			map.putAll(other.config);
-			return new MonoidMap(map);
+			return new MonoidMap(config.plusAll(other.config, (value, otherValue) -> otherValue));
 		}
 
 		public MonoidMap neutral() {
@@ -2,11 +2,15 @@ package com.cyrillemartraire.monoids;
 
 import static org.junit.Assert.assertEquals;
 
+import java.nio.ByteBuffer;
 import java.util.HashMap;
 import java.util.Map;
 
 import org.junit.Test;
 
+import com.cyrillemartraire.monoids.BinaryCodecTest.BinaryCodec;
+import com.cyrillemartraire.monoids.HashTrieMapTest.HashTrieMap;
+
 public class NestedMonoidMapTest {
 
 	@Test
@@ -57,30 +61,26 @@ public class NestedMonoidMapTest {
 	}
 
 	public static class NestedMonoidMap implements Monoid<NestedMonoidMap> {
-		private final Map<String, Monoid<?>> config;
+		private final HashTrieMap<String, Monoid<?>> config;
 
 		public NestedMonoidMap() {
-			this(new HashMap<>());
+			this(HashTrieMap.<String, Monoid<?>>empty());
 		}
 
 		public NestedMonoidMap(Map<String, Monoid<?>> config) {
-			this.config = config;
+			this.config = HashTrieMap.copyOf(config);
 		}
 
 		/**
 		 * @return A new map with values merged with the other map, where the
-		 *         values are merged their own way.
+		 *         values are merged their own way. Only the paths to the keys of
+		 *         the other map are copied.
 		 */
 		@SuppressWarnings({ "rawtypes", "unchecked" })
 		@Override
 		public NestedMonoidMap append(NestedMonoidMap other) {
-			final Map<String, Monoid<?>> map = new HashMap<>(config);
-			for (String key : other.config.keySet()) {
-				final Monoid value = config.get(key);
-				final Monoid otherValue = other.config.get(key);
-				map.put(key, value == null ? otherValue : (Monoid) value.append(otherValue));
-			}
-			return new NestedMonoidMap(map);
+			return new NestedMonoidMap(
+					config.plusAll(other.config, (value, otherValue) -> (Monoid) ((Monoid) value).append(otherValue)));
 		}
 
 		@Override
@@ -88,6 +88,26 @@ public class NestedMonoidMapTest {
 			return new NestedMonoidMap();
 		}
 
+		/** Writes each value with its type tag, so they can be decoded back */
+		void writeTo(BinaryCodec.Output out) {
+			out.writeVarLong(config.size());
+			for (Map.Entry<String, Monoid<?>> entry : config.entrySet()) {
+				out.writeString(entry.getKey());
+				BinaryCodec.writeTagged(out, entry.getValue());
+			}
+		}
+
+		static NestedMonoidMap readFrom(ByteBuffer in) {
+			// a key takes at least 1 byte, and so does the tag of its value
+			final int size = BinaryCodec.readLength(in, Integer.MAX_VALUE, 2);
+			HashTrieMap<String, Monoid<?>> config = HashTrieMap.empty();
+			for (int i = 0; i < size; i++) {
+				final String key = BinaryCodec.readString(in);
+				config = config.plus(key, (Monoid<?>) BinaryCodec.readTagged(in));
+			}
+			return new NestedMonoidMap(config);
+		}
+
 		@Override
 		public int hashCode() {
 			return config.hashCode();
@@ -114,6 +134,14 @@ public class NestedMonoidMapTest {
 		T neutral();
 	}
 
+	/**
+	 * A monoid where every element has an inverse, so that appending the
+	 * inverse retracts a value previously appended.
+	 */
+	public static interface Group<T> extends Monoid<T> {
+		T inverse();
+	}
+
 	public static class ConcatenativeString implements Monoid<ConcatenativeString> {
 
 		private final String s;
@@ -132,6 +160,14 @@ public class NestedMonoidMapTest {
 			return new ConcatenativeString("");
 		}
 
+		void writeTo(BinaryCodec.Output out) {
+			out.writeString(s);
+		}
+
+		static ConcatenativeString readFrom(ByteBuffer in) {
+			return new ConcatenativeString(BinaryCodec.readString(in));
+		}
+
 		@Override
 		public int hashCode() {
 			return s.hashCode();
@@ -167,6 +203,14 @@ public class NestedMonoidMapTest {
 			return new LastWinsString("");
 		}
 
+		void writeTo(BinaryCodec.Output out) {
+			out.writeString(s);
+		}
+
+		static LastWinsString readFrom(ByteBuffer in) {
+			return new LastWinsString(BinaryCodec.readString(in));
+		}
+
 		@Override
 		public int hashCode() {
 			return s.hashCode();
@@ -200,7 +244,15 @@ public class NestedMonoidMapTest {
 
 		@Override
 		public MinNumber neutral() {
-			return new MinNumber(Integer.MIN_VALUE);
+			return new MinNumber(Integer.MAX_VALUE);
+		}
+
+		void writeTo(BinaryCodec.Output out) {
+			out.writeSignedVarLong(v);
+		}
+
+		static MinNumber readFrom(ByteBuffer in) {
+			return new MinNumber(BinaryCodec.readSignedVarInt(in));
 		}
 
 		@Override
@@ -239,6 +291,14 @@ public class NestedMonoidMapTest {
 			return new AndBoolean(true);
 		}
 
+		void writeTo(BinaryCodec.Output out) {
+			out.writeByte(b ? 1 : 0);
+		}
+
+		static AndBoolean readFrom(ByteBuffer in) {
+			return new AndBoolean(in.get() != 0);
+		}
+
 		@Override
 		public int hashCode() {
 			return b ? 1 : -1;
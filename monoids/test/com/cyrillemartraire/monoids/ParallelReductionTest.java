@@ -0,0 +1,203 @@
+package com.cyrillemartraire.monoids;
+
+import static com.cyrillemartraire.monoids.EnvironmentalImpactTest.CertifiedAmount.certified;
+import static com.cyrillemartraire.monoids.EnvironmentalImpactTest.CertifiedAmount.uncertified;
+import static com.cyrillemartraire.monoids.EnvironmentalImpactTest.EnvironmentalImpact.singleSupplier;
+import static java.util.stream.Collectors.toList;
+import static org.junit.Assert.assertEquals;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.Spliterator;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+import java.util.function.IntFunction;
+import java.util.stream.Collector;
+import java.util.stream.IntStream;
+
+import org.junit.Test;
+
+import com.cyrillemartraire.monoids.EnvironmentalImpactTest.EnvironmentalImpact;
+import com.cyrillemartraire.monoids.NestedMonoidMapTest.AndBoolean;
+import com.cyrillemartraire.monoids.NestedMonoidMapTest.ConcatenativeString;
+import com.cyrillemartraire.monoids.NestedMonoidMapTest.Monoid;
+
+public class ParallelReductionTest {
+
+	private static final ConcatenativeString EMPTY = new ConcatenativeString("");
+
+	@Test
+	public void emptyInputReducesToNeutral() throws Exception {
+		final MonoidReducer<ConcatenativeString> reducer = new MonoidReducer<>(EMPTY);
+		assertEquals(EMPTY, reducer.reduce(Collections.<ConcatenativeString>emptyList()));
+	}
+
+	@Test
+	public void preservesOrderOfNonCommutativeAppend() throws Exception {
+		final List<ConcatenativeString> letters = letters(10_000);
+		final ConcatenativeString sequential = letters.stream().reduce(EMPTY, ConcatenativeString::append);
+
+		final MonoidReducer<ConcatenativeString> reducer = new MonoidReducer<>(EMPTY, ForkJoinPool.commonPool(), 16);
+		assertEquals(sequential, reducer.reduce(letters));
+		assertEquals(sequential, reducer.reduce(letters.toArray(new ConcatenativeString[0])));
+		assertEquals(sequential, reducer.reduce(letters.spliterator()));
+	}
+
+	@Test
+	public void parallelStreamCollector() throws Exception {
+		final List<ConcatenativeString> letters = letters(5_000);
+		final ConcatenativeString sequential = letters.stream().reduce(EMPTY, ConcatenativeString::append);
+		assertEquals(sequential, letters.parallelStream().collect(MonoidReducer.collector(EMPTY)));
+
+		final AndBoolean all = IntStream.range(0, 1000).mapToObj(i -> new AndBoolean(i != 500)).parallel()
+				.collect(MonoidReducer.collector(new AndBoolean(true)));
+		assertEquals(new AndBoolean(false), all);
+	}
+
+	@Test
+	public void rollsUpEnvironmentalImpacts() throws Exception {
+		final List<EnvironmentalImpact> impacts = IntStream.range(0, 3_000)
+				.mapToObj(i -> singleSupplier(uncertified(i % 7, "kWh", 0.5), certified(i % 3, "T", 0.1)))
+				.collect(toList());
+		final EnvironmentalImpact.Accumulator sequential = new EnvironmentalImpact.Accumulator();
+		impacts.forEach(sequential::addInPlace);
+
+		final MonoidReducer<EnvironmentalImpact> reducer = new MonoidReducer<>(EnvironmentalImpact.none(),
+				ForkJoinPool.commonPool(), 64);
+		assertEquals(sequential.result(), reducer.reduce(impacts));
+		assertEquals(sequential.result(),
+				impacts.parallelStream().collect(MonoidReducer.collector(EnvironmentalImpact.none())));
+	}
+
+	private static List<ConcatenativeString> letters(int count) {
+		return IntStream.range(0, count).mapToObj(i -> new ConcatenativeString(String.valueOf((char) ('a' + i % 26))))
+				.collect(toList());
+	}
+
+	/**
+	 * Reduces many monoid values as a balanced tree of appends on a
+	 * {@link ForkJoinPool}; associativity is all that makes it correct, and the
+	 * left-to-right order is preserved so non-commutative monoids work too.
+	 */
+	public static class MonoidReducer<T extends Monoid<T>> {
+
+		public static final int DEFAULT_THRESHOLD = 1024;
+
+		private final T neutral;
+		private final ForkJoinPool pool;
+		private final int threshold;
+
+		public MonoidReducer(T neutral) {
+			this(neutral, ForkJoinPool.commonPool(), DEFAULT_THRESHOLD);
+		}
+
+		public MonoidReducer(T neutral, ForkJoinPool pool, int threshold) {
+			if (threshold < 1) {
+				throw new IllegalArgumentException("Threshold must be at least 1: " + threshold);
+			}
+			this.neutral = neutral;
+			this.pool = pool;
+			this.threshold = threshold;
+		}
+
+		public T reduce(List<T> values) {
+			return pool.invoke(new RangeTask<>(values::get, 0, values.size(), neutral, threshold));
+		}
+
+		public T reduce(T[] values) {
+			return pool.invoke(new RangeTask<>(i -> values[i], 0, values.length, neutral, threshold));
+		}
+
+		public T reduce(Spliterator<T> values) {
+			return pool.invoke(new SpliteratorTask<>(values, neutral, threshold));
+		}
+
+		/**
+		 * @return A collector to reduce a (parallel) stream of monoid values,
+		 *         each partition being folded into its own mutable holder
+		 */
+		public static <T extends Monoid<T>> Collector<T, ?, T> collector(T neutral) {
+			return Collector.<T, Holder<T>, T>of(() -> new Holder<>(neutral), Holder::append,
+					Holder::combine, holder -> holder.value);
+		}
+
+		private static final class Holder<T extends Monoid<T>> {
+			private T value;
+
+			Holder(T neutral) {
+				this.value = neutral;
+			}
+
+			void append(T other) {
+				value = value.append(other);
+			}
+
+			Holder<T> combine(Holder<T> other) {
+				append(other.value);
+				return this;
+			}
+		}
+
+		/** Folds the values at indices [from, to) of any random-access source */
+		private static final class RangeTask<T extends Monoid<T>> extends RecursiveTask<T> {
+			private static final long serialVersionUID = 1L;
+			private final IntFunction<T> values;
+			private final int from;
+			private final int to;
+			private final T neutral;
+			private final int threshold;
+
+			RangeTask(IntFunction<T> values, int from, int to, T neutral, int threshold) {
+				this.values = values;
+				this.from = from;
+				this.to = to;
+				this.neutral = neutral;
+				this.threshold = threshold;
+			}
+
+			@Override
+			protected T compute() {
+				if (to - from <= threshold) {
+					T result = neutral;
+					for (int i = from; i < to; i++) {
+						result = result.append(values.apply(i));
+					}
+					return result;
+				}
+				final int middle = (from + to) >>> 1;
+				final RangeTask<T> left = new RangeTask<>(values, from, middle, neutral, threshold);
+				left.fork();
+				final T right = new RangeTask<>(values, middle, to, neutral, threshold).compute();
+				return left.join().append(right);
+			}
+		}
+
+		private static final class SpliteratorTask<T extends Monoid<T>> extends RecursiveTask<T> {
+			private static final long serialVersionUID = 1L;
+			private final Spliterator<T> values;
+			private final T neutral;
+			private final int threshold;
+
+			SpliteratorTask(Spliterator<T> values, T neutral, int threshold) {
+				this.values = values;
+				this.neutral = neutral;
+				this.threshold = threshold;
+			}
+
+			@Override
+			protected T compute() {
+				// trySplit() hands over the prefix, which therefore goes on the left
+				final Spliterator<T> prefix = values.estimateSize() > threshold ? values.trySplit() : null;
+				if (prefix == null) {
+					final Holder<T> leaf = new Holder<>(neutral);
+					values.forEachRemaining(leaf::append);
+					return leaf.value;
+				}
+				final SpliteratorTask<T> left = new SpliteratorTask<>(prefix, neutral, threshold);
+				left.fork();
+				final T right = compute();
+				return left.join().append(right);
+			}
+		}
+	}
+}
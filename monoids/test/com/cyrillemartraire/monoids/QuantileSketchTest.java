@@ -0,0 +1,352 @@
+package com.cyrillemartraire.monoids;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Random;
+
+import org.junit.Test;
+
+import com.cyrillemartraire.monoids.BinaryCodecTest.BinaryCodec;
+
+public class QuantileSketchTest {
+
+	// as documented: 2/k of the count, 1% for the default k
+	private static final double RANK_ERROR = 2. / QuantileSketch.DEFAULT_K;
+
+	@Test
+	public void exactWhileSmall() throws Exception {
+		final QuantileSketch sketch = QuantileSketch.of(5, 1, 4, 2, 3);
+		assertEquals(5, sketch.count());
+		assertEquals(1., sketch.quantile(0.), 0.);
+		assertEquals(3., sketch.quantile(0.5), 0.);
+		assertEquals(5., sketch.quantile(1.), 0.);
+		assertEquals(sketch, sketch.add(QuantileSketch.NEUTRAL));
+		assertEquals(sketch, QuantileSketch.NEUTRAL.add(sketch));
+	}
+
+	@Test
+	public void mergedPartitionsStayWithinRankError() throws Exception {
+		final Random random = new Random(11);
+		final QuantileSketch[] partitions = new QuantileSketch[10];
+		final double[] all = new double[100_000];
+		for (int p = 0; p < partitions.length; p++) {
+			final double[] values = new double[10_000];
+			for (int i = 0; i < values.length; i++) {
+				values[i] = random.nextDouble();
+			}
+			System.arraycopy(values, 0, all, p * values.length, values.length);
+			partitions[p] = QuantileSketch.of(values);
+		}
+		Arrays.sort(all);
+		QuantileSketch leftToRight = QuantileSketch.NEUTRAL;
+		QuantileSketch rightToLeft = QuantileSketch.NEUTRAL;
+		for (int p = 0; p < partitions.length; p++) {
+			leftToRight = leftToRight.add(partitions[p]);
+			rightToLeft = partitions[partitions.length - 1 - p].add(rightToLeft);
+		}
+		for (QuantileSketch sketch : new QuantileSketch[] { leftToRight, rightToLeft }) {
+			assertEquals(100_000, sketch.count());
+			assertTrue(sketch.retained() < 3 * QuantileSketch.DEFAULT_K);
+			for (int percent = 1; percent < 100; percent++) {
+				final double rank = (double) Arrays.binarySearch(all, sketch.quantile(percent / 100.)) / all.length;
+				assertEquals(percent / 100., rank, RANK_ERROR);
+			}
+		}
+	}
+
+	@Test
+	public void sortedInputInManySmallSketches() throws Exception {
+		// the worst case of a deterministic compaction: every sketch sorted, and
+		// each one in the range right above the previous ones
+		QuantileSketch sketch = QuantileSketch.NEUTRAL;
+		for (int start = 0; start < 100_000; start += 100) {
+			final double[] values = new double[100];
+			for (int i = 0; i < values.length; i++) {
+				values[i] = start + i;
+			}
+			sketch = sketch.add(QuantileSketch.of(values));
+		}
+		assertEquals(100_000, sketch.count());
+		for (int percent = 1; percent < 100; percent++) {
+			// each value is its own rank
+			assertEquals(percent / 100., sketch.quantile(percent / 100.) / 100_000, RANK_ERROR);
+		}
+	}
+
+	@Test
+	public void mergeIsAPureFunctionOfItsInputs() throws Exception {
+		final Random random = new Random(3);
+		final double[] left = new double[5_000];
+		final double[] right = new double[5_000];
+		for (int i = 0; i < left.length; i++) {
+			left[i] = random.nextGaussian();
+			right[i] = random.nextGaussian();
+		}
+		final QuantileSketch once = QuantileSketch.of(left).add(QuantileSketch.of(right));
+		final QuantileSketch twice = QuantileSketch.of(left).add(QuantileSketch.of(right));
+		assertEquals(once, twice);
+		assertEquals(once.hashCode(), twice.hashCode());
+		assertEquals(once.quantile(0.5), twice.quantile(0.5), 0.);
+	}
+
+	/**
+	 * An approximate distribution of doubles in bounded memory, after the KLL
+	 * sketch (Karnin, Lang, Liberty 2016): a stack of compactors where each
+	 * level holds items of weight 2^level, and a full level is sorted then
+	 * every other item is promoted to the next level.
+	 * <p>
+	 * With parameter k it retains fewer than about 3k items whatever the count,
+	 * and with high probability the rank of a returned quantile is off by less
+	 * than about 2/k of the count (1% for the default k = 200), on any input
+	 * order including sorted runs. Adding two sketches keeps the same bounds,
+	 * in any order of merges.
+	 * <p>
+	 * The coin of each compaction, which picks the odd or the even items, is
+	 * drawn from a fixed seed by level and number of compactions: the bound
+	 * rests on the coins being independent of the values, as in KLL, while a
+	 * sketch and any merge of sketches stay a pure function of the inputs.
+	 */
+	public static class QuantileSketch {
+
+		public static final int DEFAULT_K = 200;
+
+		// as the values of level h each stand for 2^h of a count that is a long
+		private static final int MAX_LEVELS = 64;
+
+		// of the coins of the compactions, as a sketch must not depend on the run
+		private static final long SEED = 0x5DEECE66DL;
+
+		private final int k;
+		private final double[][] levels;
+		// the number of compactions of each level so far, to pick their coins
+		private final int[] compactions;
+		private final long count;
+		private final double min;
+		private final double max;
+
+		public static final QuantileSketch NEUTRAL = new QuantileSketch(DEFAULT_K, new double[][] { {} }, new int[0],
+				0, Double.NaN, Double.NaN);
+
+		public static final QuantileSketch of(double... values) {
+			return withK(DEFAULT_K, values);
+		}
+
+		public static final QuantileSketch withK(int k, double... values) {
+			if (values.length == 0) {
+				return new QuantileSketch(k, new double[][] { {} }, new int[0], 0, Double.NaN, Double.NaN);
+			}
+			final double[] sorted = values.clone();
+			Arrays.sort(sorted);
+			return compressed(k, new double[][] { sorted }, new int[0], values.length, sorted[0],
+					sorted[sorted.length - 1]);
+		}
+
+		private QuantileSketch(int k, double[][] levels, int[] compactions, long count, double min, double max) {
+			if (k < 8) {
+				throw new IllegalArgumentException("k must be at least 8: " + k);
+			}
+			this.k = k;
+			this.levels = levels;
+			this.compactions = compactions;
+			this.count = count;
+			this.min = min;
+			this.max = max;
+		}
+
+		public QuantileSketch add(QuantileSketch other) {
+			if (other.count == 0) {
+				return this;
+			}
+			if (count == 0) {
+				return other;
+			}
+			if (k != other.k) {
+				throw new IllegalArgumentException("Can only add sketches of same k: " + k + " <> " + other.k);
+			}
+			final double[][] merged = new double[Math.max(levels.length, other.levels.length)][];
+			for (int h = 0; h < merged.length; h++) {
+				final double[] mine = h < levels.length ? levels[h] : new double[0];
+				final double[] theirs = h < other.levels.length ? other.levels[h] : new double[0];
+				merged[h] = Arrays.copyOf(mine, mine.length + theirs.length);
+				System.arraycopy(theirs, 0, merged[h], mine.length, theirs.length);
+			}
+			final int[] compacted = Arrays.copyOf(compactions, Math.max(compactions.length, other.compactions.length));
+			for (int h = 0; h < other.compactions.length; h++) {
+				compacted[h] += other.compactions[h];
+			}
+			return compressed(k, merged, compacted, count + other.count, Math.min(min, other.min),
+					Math.max(max, other.max));
+		}
+
+		public long count() {
+			return count;
+		}
+
+		/** @return the number of items kept in memory */
+		public int retained() {
+			int retained = 0;
+			for (double[] level : levels) {
+				retained += level.length;
+			}
+			return retained;
+		}
+
+		/** @return an approximate value at the given quantile (0 to 1) */
+		public double quantile(double quantile) {
+			if (quantile < 0. || quantile > 1.) {
+				throw new IllegalArgumentException("Quantile must be between 0 and 1: " + quantile);
+			}
+			if (count == 0) {
+				return Double.NaN;
+			}
+			if (quantile == 0.) {
+				return min;
+			}
+			if (quantile == 1.) {
+				return max;
+			}
+			final int retained = retained();
+			final double[] values = new double[retained];
+			final long[] weights = new long[retained];
+			final Integer[] order = new Integer[retained];
+			int i = 0;
+			for (int h = 0; h < levels.length; h++) {
+				for (double value : levels[h]) {
+					values[i] = value;
+					weights[i] = 1L << h;
+					order[i] = i;
+					i++;
+				}
+			}
+			Arrays.sort(order, (a, b) -> Double.compare(values[a], values[b]));
+			final double rank = quantile * count;
+			long cumulated = 0;
+			for (Integer index : order) {
+				cumulated += weights[index];
+				if (cumulated >= rank) {
+					return values[index];
+				}
+			}
+			return max;
+		}
+
+		void writeTo(BinaryCodec.Output out) {
+			out.writeVarLong(k).writeVarLong(count).writeDouble(min).writeDouble(max);
+			out.writeVarLong(compactions.length);
+			for (int compaction : compactions) {
+				out.writeVarLong(compaction);
+			}
+			out.writeVarLong(levels.length);
+			for (double[] level : levels) {
+				out.writeVarLong(level.length);
+				for (double value : level) {
+					out.writeDouble(value);
+				}
+			}
+		}
+
+		static QuantileSketch readFrom(ByteBuffer in) {
+			final int start = in.position();
+			final int k = BinaryCodec.readVarInt(in);
+			if (k < 8) {
+				throw BinaryCodec.malformed(start, "k of " + k);
+			}
+			final long count = BinaryCodec.readVarLong(in);
+			final double min = BinaryCodec.readDouble(in);
+			final double max = BinaryCodec.readDouble(in);
+			final int[] compactions = new int[BinaryCodec.readLength(in, MAX_LEVELS, 1)];
+			for (int h = 0; h < compactions.length; h++) {
+				compactions[h] = BinaryCodec.readVarInt(in);
+			}
+			final double[][] levels = new double[BinaryCodec.readLength(in, MAX_LEVELS, 1)][];
+			for (int h = 0; h < levels.length; h++) {
+				levels[h] = new double[BinaryCodec.readLength(in, Integer.MAX_VALUE, 8)];
+				for (int i = 0; i < levels[h].length; i++) {
+					levels[h][i] = BinaryCodec.readDouble(in);
+				}
+			}
+			return new QuantileSketch(k, levels, compactions, count, min, max);
+		}
+
+		private static int capacity(int k, int level, int height) {
+			return Math.max(2, (int) Math.ceil(k * Math.pow(2. / 3., height - 1 - level)));
+		}
+
+		/**
+		 * Compacts the lowest overfull level until every level fits, counting
+		 * the compactions of each level into the given array, which it owns
+		 */
+		private static QuantileSketch compressed(int k, double[][] levels, int[] compactions, long count, double min,
+				double max) {
+			boolean compacted = true;
+			while (compacted) {
+				compacted = false;
+				for (int h = 0; h < levels.length; h++) {
+					if (levels[h].length > capacity(k, h, levels.length)) {
+						if (compactions.length <= h) {
+							compactions = Arrays.copyOf(compactions, h + 1);
+						}
+						levels = compact(levels, h, coin(h, compactions[h]++));
+						compacted = true;
+						break;
+					}
+				}
+			}
+			return new QuantileSketch(k, levels, compactions, count, min, max);
+		}
+
+		/**
+		 * @return the random offset of the given compaction of a level, from a
+		 *         fixed seed: independent of the values as KLL requires, yet
+		 *         the same from one run to the next
+		 */
+		private static int coin(int level, int compaction) {
+			long z = SEED + ((long) level << 32 | compaction) * 0x9E3779B97F4A7C15L;
+			z = (z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L;
+			z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+			return (int) ((z ^ (z >>> 31)) >>> 63);
+		}
+
+		private static double[][] compact(double[][] levels, int h, int offset) {
+			final double[] level = levels[h].clone();
+			Arrays.sort(level);
+			// an odd item stays at this level, the others are halved into the next
+			final int kept = level.length % 2;
+			final double[] promoted = new double[(level.length - kept) / 2];
+			for (int i = 0; i < promoted.length; i++) {
+				promoted[i] = level[kept + 2 * i + offset];
+			}
+			final double[][] result = Arrays.copyOf(levels, Math.max(levels.length, h + 2));
+			result[h] = Arrays.copyOf(level, kept);
+			final double[] next = h + 1 < levels.length ? levels[h + 1] : new double[0];
+			result[h + 1] = Arrays.copyOf(next, next.length + promoted.length);
+			System.arraycopy(promoted, 0, result[h + 1], next.length, promoted.length);
+			return result;
+		}
+
+		@Override
+		public int hashCode() {
+			return 31 * k + Arrays.deepHashCode(levels) ^ Long.hashCode(count);
+		}
+
+		@Override
+		public boolean equals(Object obj) {
+			if (this == obj) {
+				return true;
+			}
+			if (!(obj instanceof QuantileSketch)) {
+				return false;
+			}
+			QuantileSketch other = (QuantileSketch) obj;
+			return k == other.k && count == other.count && Arrays.deepEquals(levels, other.levels);
+		}
+
+		@Override
+		public String toString() {
+			return "QuantileSketch(" + count + " values, median: " + quantile(0.5) + ", retained: " + retained() + ")";
+		}
+	}
+}
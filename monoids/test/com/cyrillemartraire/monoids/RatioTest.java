@@ -1,9 +1,23 @@
 package com.cyrillemartraire.monoids;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.math.MathContext;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
 
 import org.junit.Test;
 
+import com.cyrillemartraire.monoids.BinaryCodecTest.BinaryCodec;
+
 public class RatioTest {
 
 	@Test
@@ -22,37 +36,151 @@ public class RatioTest {
 		assertEquals("(1/3)*(5/2)", new Ratio(1, 3).multiply(new Ratio(5, 2)).trace());
 	}
 
-	/** A ratio that compose under multiplication */
+	@Test
+	public void traceOfNestedProducts() throws Exception {
+		final Ratio chain = new Ratio(100, 50).multiply(new Ratio(1, 3)).multiply(new Ratio(5, 2));
+		assertEquals("((100/50)*(1/3))*(5/2)", chain.trace());
+		assertEquals(new Ratio(5, 3), chain);
+		assertEquals(5. / 3., chain.ratio(), 0.0001);
+	}
+
+	@Test
+	public void traceOfNestedProductsKeepsExplicitTraces() throws Exception {
+		final Ratio chain = new Ratio(100, 50, "yield").multiply(new Ratio(1, 3)).multiply(new Ratio(5, 2, "markup"));
+		assertEquals("((yield)*(1/3))*(markup)", chain.trace());
+	}
+
+	@Test
+	public void traceOfLongChains() throws Exception {
+		Ratio chain = new Ratio(1, 1);
+		for (int i = 0; i < 100_000; i++) {
+			chain = chain.multiply(new Ratio(1, 1));
+		}
+		assertEquals(Ratio.NEUTRAL, chain);
+		assertEquals(100_000 * "()*(1/1)".length() + "1/1".length(), chain.trace().length());
+	}
+
+	@Test
+	public void leafIsTracedAsInsideProducts() throws Exception {
+		assertEquals("1/3", new Ratio(1, 3).trace());
+		assertEquals("yield", new Ratio(1, 3, "yield").trace());
+		assertEquals("(1/3)*(yield)", new Ratio(1, 3).multiply(new Ratio(1, 3, "yield")).trace());
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void nullTraceIsRejected() throws Exception {
+		new Ratio(1, 3, null);
+	}
+
+	@Test
+	public void sharedProductsAreTracedOnce() throws Exception {
+		final Ratio half = new Ratio(1, 2);
+		final Ratio quarter = half.multiply(half);
+		assertEquals("(1/2)*(1/2)", quarter.trace());
+		assertEquals("(#1=(1/2)*(1/2))*(#1#)", quarter.multiply(quarter).trace());
+
+		Ratio squares = new Ratio(1, 1, "one");
+		for (int i = 0; i < 64; i++) {
+			squares = squares.multiply(squares);
+		}
+		assertEquals(Ratio.NEUTRAL, squares);
+		final String trace = squares.trace();
+		assertTrue(trace.startsWith("(#1=(#2=(#3="));
+		assertTrue(trace.endsWith(")*(#2#))*(#1#)"));
+		assertTrue(trace.length() < 64 * 20);
+	}
+
+	@Test
+	public void rationalIsReduced() throws Exception {
+		assertEquals(new Rational(2, 1), new Rational(100, 50).multiply(new Rational(2, 2)));
+		assertEquals(new Rational(1, 3), new Rational(-2, -6));
+		assertEquals(1. / 3., new Rational(1, 3).ratio(), 0.0001);
+		final long big = 3_000_000_000L;
+		assertEquals(Rational.NEUTRAL, new Rational(big, 7).multiply(new Rational(7, big)));
+	}
+
+	@Test
+	public void overflowFallsBackToBigInteger() throws Exception {
+		final Rational big = new Rational(Long.MAX_VALUE, 3);
+		final Rational square = big.multiply(big);
+		assertEquals(BigInteger.valueOf(Long.MAX_VALUE).pow(2), square.numerator());
+		assertEquals(BigInteger.valueOf(9), square.denominator());
+		assertEquals(new Rational(Long.MAX_VALUE, 3), square.multiply(new Rational(3, Long.MAX_VALUE)));
+		assertEquals(Rational.NEUTRAL, square.multiply(new Rational(9, Long.MAX_VALUE)).multiply(new Rational(1, Long.MAX_VALUE)));
+		assertEquals(square, Rational.product(new long[] { Long.MAX_VALUE, Long.MAX_VALUE }, new long[] { 3, 3 }));
+		assertEquals(1. / 3., new Ratio(1, 3).ratio(), 0.0001);
+	}
+
+	@Test
+	public void multiplyingColumnsOfRatios() throws Exception {
+		final long[] numerators = { 100, 1 };
+		final long[] denominators = { 50, 3 };
+		Rational.multiply(numerators, denominators, new long[] { 2, 5 }, new long[] { 2, 2 });
+		assertEquals(new Rational(2, 1), Rational.at(numerators, denominators, 0));
+		assertEquals(new Rational(5, 6), Rational.at(numerators, denominators, 1));
+		assertEquals(new Rational(5, 3), Rational.product(numerators, denominators));
+	}
+
+	/**
+	 * A ratio that compose under multiplication, and remembers how it was
+	 * composed: a product only keeps references to its two operands, and the
+	 * trace is rendered from this tree only when asked for
+	 */
 	public static class Ratio {
 
-		private final int numerator;
-		private final int denumerator;
+		private final Rational value;
+		// as given, for a ratio that is not a product
+		private final long numerator;
+		private final long denumerator;
 		private final String trace;
+		// the operands, for a product
+		private final Ratio left;
+		private final Ratio right;
 
 		public static final Ratio NEUTRAL = new Ratio(1, 1, "");
 
-		public Ratio(int numerator, int denumerator) {
+		// the kinds of nodes in the encoding
+		private static final byte END = 0;
+		private static final byte LEAF = 1;
+		private static final byte PRODUCT = 2;
+		private static final byte REFERENCE = 3;
+
+		public Ratio(long numerator, long denumerator) {
 			this(numerator, denumerator, "");
 		}
 
-		public Ratio(int numerator, int denumerator, String trace) {
+		public Ratio(long numerator, long denumerator, String trace) {
+			if (trace == null) {
+				throw new IllegalArgumentException("Trace must not be null, but may be empty");
+			}
+			this.value = new Rational(numerator, denumerator);
 			this.numerator = numerator;
 			this.denumerator = denumerator;
 			this.trace = trace;
+			this.left = null;
+			this.right = null;
+		}
+
+		private Ratio(Ratio left, Ratio right) {
+			this.value = left.value.multiply(right.value);
+			this.numerator = 0;
+			this.denumerator = 0;
+			this.trace = null;
+			this.left = left;
+			this.right = right;
 		}
 
 		public double ratio() {
-			return numerator / denumerator;
+			return value.ratio();
 		}
 
 		public Ratio multiply(Ratio other) {
-			return new Ratio(numerator * other.numerator, denumerator * other.denumerator,
-					"(" + asString() + ")*(" + other.asString() + ")");
+			return new Ratio(this, other);
 		}
 
 		@Override
 		public int hashCode() {
-			return 31 + denumerator ^ numerator;
+			return value.hashCode();
 		}
 
 		@Override
@@ -64,15 +192,361 @@ public class RatioTest {
 				return false;
 			}
 			Ratio other = (Ratio) obj;
-			return denumerator == other.denumerator && numerator == other.numerator;
+			return value.equals(other.value);
 		}
 
+		/** @return the reduced numerator and denominator */
 		public String asString() {
-			return numerator + "/" + denumerator;
+			return value.asString();
 		}
 
+		/**
+		 * Writes the tree of products in post-order, a leaf as its ratio and
+		 * trace, a product as a marker over the last two operands, and any
+		 * operand already written as a back-reference to its index, so that
+		 * shared subtrees are written once; all without recursing
+		 */
+		void writeTo(BinaryCodec.Output out) {
+			final Map<Ratio, Integer> written = new IdentityHashMap<>();
+			final Deque<Object> pending = new ArrayDeque<>();
+			pending.push(this);
+			while (!pending.isEmpty()) {
+				final Object next = pending.pop();
+				if (next instanceof Product) {
+					out.writeByte(PRODUCT);
+					written.put(((Product) next).ratio, written.size());
+					continue;
+				}
+				final Ratio ratio = (Ratio) next;
+				final Integer index = written.get(ratio);
+				if (index != null) {
+					out.writeByte(REFERENCE).writeVarLong(index);
+				} else if (ratio.left == null) {
+					out.writeByte(LEAF).writeSignedVarLong(ratio.numerator).writeSignedVarLong(ratio.denumerator)
+							.writeString(ratio.trace);
+					written.put(ratio, written.size());
+				} else {
+					pending.push(new Product(ratio));
+					pending.push(ratio.right);
+					pending.push(ratio.left);
+				}
+			}
+			out.writeByte(END);
+		}
+
+		static Ratio readFrom(ByteBuffer in) {
+			final List<Ratio> read = new ArrayList<>();
+			final Deque<Ratio> operands = new ArrayDeque<>();
+			for (int kind = in.get(); kind != END; kind = in.get()) {
+				if (kind == LEAF) {
+					final Ratio leaf = new Ratio(BinaryCodec.readSignedVarLong(in), BinaryCodec.readSignedVarLong(in),
+							BinaryCodec.readString(in));
+					read.add(leaf);
+					operands.push(leaf);
+				} else if (kind == REFERENCE) {
+					final long index = BinaryCodec.readVarLong(in);
+					if (index >= read.size()) {
+						throw new IllegalArgumentException(
+								"Malformed ratio at " + in.position() + ": no ratio #" + index + " yet");
+					}
+					operands.push(read.get((int) index));
+				} else if (kind == PRODUCT && operands.size() >= 2) {
+					final Ratio right = operands.pop();
+					final Ratio product = new Ratio(operands.pop(), right);
+					read.add(product);
+					operands.push(product);
+				} else {
+					throw new IllegalArgumentException("Malformed ratio at " + in.position() + ": unexpected "
+							+ kind + " over " + operands.size() + " operands");
+				}
+			}
+			if (operands.size() != 1) {
+				throw new IllegalArgumentException("Malformed tree of " + operands.size() + " ratios");
+			}
+			return operands.pop();
+		}
+
+		/**
+		 * @return the composition of products down to the original ratios,
+		 *         each shown by its own trace if any, else as a fraction; a
+		 *         product used more than once is labelled {@code #1=} where
+		 *         first shown and then only referred to as {@code #1#}
+		 */
 		public String trace() {
-			return trace;
+			final Map<Ratio, Integer> labels = sharedProducts();
+			final StringBuilder sb = new StringBuilder();
+			// an explicit stack of ratios and text still to render, as long
+			// chains of products would overflow the call stack
+			final Deque<Object> pending = new ArrayDeque<>();
+			pending.push(this);
+			int nextLabel = 1;
+			while (!pending.isEmpty()) {
+				final Object next = pending.pop();
+				if (next instanceof String) {
+					sb.append((String) next);
+					continue;
+				}
+				final Ratio ratio = (Ratio) next;
+				if (ratio.left == null) {
+					if (ratio.trace.isEmpty()) {
+						sb.append(ratio.numerator).append('/').append(ratio.denumerator);
+					} else {
+						sb.append(ratio.trace);
+					}
+					continue;
+				}
+				final Integer label = labels.get(ratio);
+				if (label != null && label > 0) {
+					sb.append('#').append(label).append('#');
+					continue;
+				}
+				if (label != null) {
+					labels.put(ratio, nextLabel);
+					sb.append('#').append(nextLabel++).append('=');
+				}
+				pending.push(")");
+				pending.push(ratio.right);
+				pending.push(")*(");
+				pending.push(ratio.left);
+				pending.push("(");
+			}
+			return sb.toString();
+		}
+
+		/**
+		 * @return the products reached more than once from this ratio, mapped
+		 *         to 0 until they are given a label
+		 */
+		private Map<Ratio, Integer> sharedProducts() {
+			final Map<Ratio, Boolean> seen = new IdentityHashMap<>();
+			final Map<Ratio, Integer> shared = new IdentityHashMap<>();
+			final Deque<Ratio> pending = new ArrayDeque<>();
+			pending.push(this);
+			while (!pending.isEmpty()) {
+				final Ratio ratio = pending.pop();
+				if (ratio.left == null) {
+					continue;
+				}
+				if (seen.put(ratio, Boolean.TRUE) != null) {
+					shared.put(ratio, 0);
+					continue;
+				}
+				pending.push(ratio.right);
+				pending.push(ratio.left);
+			}
+			return shared;
+		}
+
+		/** A product to write once its operands have been written */
+		private static final class Product {
+			private final Ratio ratio;
+
+			Product(Ratio ratio) {
+				this.ratio = ratio;
+			}
+		}
+
+		@Override
+		public String toString() {
+			return asString() + " = " + ratio();
+		}
+	}
+
+	/**
+	 * An exact rational number, always kept in reduced form with a positive
+	 * denominator, so that equality is plain field comparison. It stays on
+	 * {@code long}s, cross-reducing before multiplying to keep the values
+	 * small, and only switches to {@link BigInteger} when a product would
+	 * overflow; a value that fits in longs is always stored as longs.
+	 * <p>
+	 * The static kernels over columns stay on longs and throw an
+	 * {@link ArithmeticException} on overflow, except {@link #product}.
+	 */
+	public static class Rational {
+
+		private static final BigInteger LONG_MIN = BigInteger.valueOf(Long.MIN_VALUE);
+		private static final BigInteger LONG_MAX = BigInteger.valueOf(Long.MAX_VALUE);
+
+		private final long numerator;
+		private final long denominator;
+		// only when the reduced value does not fit in longs, else null
+		private final BigInteger bigNumerator;
+		private final BigInteger bigDenominator;
+
+		public static final Rational NEUTRAL = new Rational(1, 1);
+
+		public static final Rational at(long[] numerators, long[] denominators, int index) {
+			return new Rational(numerators[index], denominators[index]);
+		}
+
+		/** @return the product of all the ratios in the columns */
+		public static Rational product(long[] numerators, long[] denominators) {
+			long n = 1;
+			long d = 1;
+			for (int i = 0; i < numerators.length; i++) {
+				final long g1 = gcd(n, denominators[i]);
+				final long g2 = gcd(numerators[i], d);
+				try {
+					n = Math.multiplyExact(n / g1, numerators[i] / g2);
+					d = Math.multiplyExact(d / g2, denominators[i] / g1);
+				} catch (ArithmeticException overflow) {
+					Rational product = new Rational(n, d);
+					for (int j = i; j < numerators.length; j++) {
+						product = product.multiply(new Rational(numerators[j], denominators[j]));
+					}
+					return product;
+				}
+			}
+			return new Rational(n, d);
+		}
+
+		/** Multiplies each ratio of the other columns into the ratio at same index */
+		public static void multiply(long[] numerators, long[] denominators, long[] otherNumerators,
+				long[] otherDenominators) {
+			for (int i = 0; i < numerators.length; i++) {
+				final long g1 = gcd(numerators[i], otherDenominators[i]);
+				final long g2 = gcd(otherNumerators[i], denominators[i]);
+				final long n = Math.multiplyExact(numerators[i] / g1, otherNumerators[i] / g2);
+				final long d = Math.multiplyExact(denominators[i] / g2, otherDenominators[i] / g1);
+				final long g = gcd(n, d);
+				numerators[i] = n / g;
+				denominators[i] = d / g;
+			}
+		}
+
+		static long gcd(long a, long b) {
+			a = Math.abs(a);
+			b = Math.abs(b);
+			while (b != 0) {
+				final long t = a % b;
+				a = b;
+				b = t;
+			}
+			return a == 0 ? 1 : a;
+		}
+
+		public static Rational of(BigInteger numerator, BigInteger denominator) {
+			if (denominator.signum() == 0) {
+				throw new IllegalArgumentException("Denominator must not be zero");
+			}
+			BigInteger g = numerator.gcd(denominator);
+			if (denominator.signum() < 0) {
+				g = g.negate();
+			}
+			final BigInteger n = numerator.divide(g);
+			final BigInteger d = denominator.divide(g);
+			if (fitsInLong(n) && fitsInLong(d)) {
+				return new Rational(n.longValue(), d.longValue(), null, null);
+			}
+			return new Rational(0, 0, n, d);
+		}
+
+		private static boolean fitsInLong(BigInteger value) {
+			// Long.MIN_VALUE excluded, so that negating and abs never overflow
+			return value.compareTo(LONG_MIN) > 0 && value.compareTo(LONG_MAX) <= 0;
+		}
+
+		public Rational(long numerator, long denominator) {
+			if (denominator == 0) {
+				throw new IllegalArgumentException("Denominator must not be zero");
+			}
+			if (numerator == Long.MIN_VALUE || denominator == Long.MIN_VALUE) {
+				final Rational big = of(BigInteger.valueOf(numerator), BigInteger.valueOf(denominator));
+				this.numerator = big.numerator;
+				this.denominator = big.denominator;
+				this.bigNumerator = big.bigNumerator;
+				this.bigDenominator = big.bigDenominator;
+				return;
+			}
+			final long g = gcd(numerator, denominator) * Long.signum(denominator);
+			this.numerator = numerator / g;
+			this.denominator = denominator / g;
+			this.bigNumerator = null;
+			this.bigDenominator = null;
+		}
+
+		private Rational(long numerator, long denominator, BigInteger bigNumerator, BigInteger bigDenominator) {
+			this.numerator = numerator;
+			this.denominator = denominator;
+			this.bigNumerator = bigNumerator;
+			this.bigDenominator = bigDenominator;
+		}
+
+		private boolean isBig() {
+			return bigNumerator != null;
+		}
+
+		public BigInteger numerator() {
+			return isBig() ? bigNumerator : BigInteger.valueOf(numerator);
+		}
+
+		public BigInteger denominator() {
+			return isBig() ? bigDenominator : BigInteger.valueOf(denominator);
+		}
+
+		public double ratio() {
+			if (isBig()) {
+				return new BigDecimal(bigNumerator).divide(new BigDecimal(bigDenominator), MathContext.DECIMAL64)
+						.doubleValue();
+			}
+			return (double) numerator / denominator;
+		}
+
+		public Rational multiply(Rational other) {
+			if (!isBig() && !other.isBig()) {
+				final long g1 = gcd(numerator, other.denominator);
+				final long g2 = gcd(other.numerator, denominator);
+				try {
+					return new Rational(Math.multiplyExact(numerator / g1, other.numerator / g2),
+							Math.multiplyExact(denominator / g2, other.denominator / g1));
+				} catch (ArithmeticException overflow) {
+					// falls back to BigInteger below
+				}
+			}
+			return of(numerator().multiply(other.numerator()), denominator().multiply(other.denominator()));
+		}
+
+		@Override
+		public int hashCode() {
+			if (isBig()) {
+				return 31 + bigDenominator.hashCode() ^ bigNumerator.hashCode();
+			}
+			return 31 + Long.hashCode(denominator) ^ Long.hashCode(numerator);
+		}
+
+		@Override
+		public boolean equals(Object obj) {
+			if (this == obj) {
+				return true;
+			}
+			if (!(obj instanceof Rational)) {
+				return false;
+			}
+			Rational other = (Rational) obj;
+			if (isBig() || other.isBig()) {
+				return isBig() && other.isBig() && bigNumerator.equals(other.bigNumerator)
+						&& bigDenominator.equals(other.bigDenominator);
+			}
+			return denominator == other.denominator && numerator == other.numerator;
+		}
+
+		public String asString() {
+			return isBig() ? bigNumerator + "/" + bigDenominator : numerator + "/" + denominator;
+		}
+
+		void writeTo(BinaryCodec.Output out) {
+			if (isBig()) {
+				out.writeByte(1).writeBytes(bigNumerator.toByteArray()).writeBytes(bigDenominator.toByteArray());
+			} else {
+				out.writeByte(0).writeSignedVarLong(numerator).writeVarLong(denominator);
+			}
+		}
+
+		static Rational readFrom(ByteBuffer in) {
+			if (in.get() == 1) {
+				return of(new BigInteger(BinaryCodec.readBytes(in)), new BigInteger(BinaryCodec.readBytes(in)));
+			}
+			return new Rational(BinaryCodec.readSignedVarLong(in), BinaryCodec.readVarLong(in));
 		}
 
 		@Override
@@ -0,0 +1,115 @@
+package com.cyrillemartraire.monoids;
+
+import static org.junit.Assert.assertEquals;
+
+import java.time.LocalDate;
+import java.util.ArrayDeque;
+import java.util.Currency;
+import java.util.Deque;
+
+import org.junit.Test;
+
+import com.cyrillemartraire.monoids.AverageTest.Average;
+import com.cyrillemartraire.monoids.CashflowSequenceTest.Cashflow;
+import com.cyrillemartraire.monoids.CashflowSequenceTest.CashflowSequence;
+import com.cyrillemartraire.monoids.EnvironmentalImpactTest.Amount;
+import com.cyrillemartraire.monoids.NestedMonoidMapTest.Group;
+
+public class RetractableAggregateTest {
+
+	@Test
+	public void correctingAnAmount() throws Exception {
+		final RetractableAggregate<Amount> total = new RetractableAggregate<>(Amount.neutral("kWh"));
+		final Amount wrong = new Amount(5., "kWh", 1.);
+		total.add(new Amount(1., "kWh", 0.3)).add(wrong);
+		total.retract(wrong).add(new Amount(3., "kWh", 1.));
+		assertEquals(new Amount(4., "kWh", 1.3), total.total());
+	}
+
+	@Test
+	public void rollingAverage() throws Exception {
+		final RetractingWindow<Average> lastThree = new RetractingWindow<>(Average.NEUTRAL, 3);
+		for (int value : new int[] { 10, 2, 4, 6, 8 }) {
+			lastThree.add(Average.of(value));
+		}
+		assertEquals(Average.of(4, 6, 8), lastThree.aggregate());
+		assertEquals(6., lastThree.aggregate().average(), 0.0001);
+	}
+
+	@Test
+	public void retractingCashflowsNetsToZero() throws Exception {
+		final Currency ccy = Currency.getInstance("EUR");
+		final LocalDate date = LocalDate.parse("2018-07-19");
+		final CashflowSequence interests = new CashflowSequence(new Cashflow(120, ccy, date));
+		final CashflowSequence reimbursement = new CashflowSequence(new Cashflow(10000, ccy, date));
+		final RetractableAggregate<CashflowSequence> total = new RetractableAggregate<>(CashflowSequence.EMPTY);
+		total.add(interests).add(reimbursement).retract(interests);
+		assertEquals(reimbursement, total.total());
+	}
+
+	/**
+	 * A running total over a group, where retracting a value is a single
+	 * append of its inverse rather than a recomputation from scratch
+	 */
+	public static class RetractableAggregate<T extends Group<T>> {
+		private T total;
+
+		public RetractableAggregate(T neutral) {
+			this.total = neutral;
+		}
+
+		public RetractableAggregate<T> add(T value) {
+			total = total.append(value);
+			return this;
+		}
+
+		public RetractableAggregate<T> retract(T value) {
+			total = total.append(value.inverse());
+			return this;
+		}
+
+		public T total() {
+			return total;
+		}
+	}
+
+	/**
+	 * The append of the last values of a stream over a group: evicting the
+	 * oldest value prepends its inverse, in O(1) with a single running
+	 * aggregate. Not thread-safe.
+	 */
+	public static class RetractingWindow<T extends Group<T>> {
+		private final int maxCount;
+		private final Deque<T> values = new ArrayDeque<>();
+		private T aggregate;
+
+		public RetractingWindow(T neutral, int maxCount) {
+			if (maxCount < 1) {
+				throw new IllegalArgumentException("Need a positive count: " + maxCount);
+			}
+			this.maxCount = maxCount;
+			this.aggregate = neutral;
+		}
+
+		public void add(T value) {
+			values.addLast(value);
+			aggregate = aggregate.append(value);
+			if (values.size() > maxCount) {
+				evictOldest();
+			}
+		}
+
+		public void evictOldest() {
+			// the oldest is on the left of the aggregate, so is its inverse
+			aggregate = values.removeFirst().inverse().append(aggregate);
+		}
+
+		public T aggregate() {
+			return aggregate;
+		}
+
+		public int size() {
+			return values.size();
+		}
+	}
+}
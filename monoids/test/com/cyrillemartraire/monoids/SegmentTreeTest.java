@@ -0,0 +1,188 @@
+package com.cyrillemartraire.monoids;
+
+import static org.junit.Assert.assertEquals;
+
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Currency;
+import java.util.List;
+
+import org.junit.Test;
+
+import com.cyrillemartraire.monoids.CashflowSequenceTest.Cashflow;
+import com.cyrillemartraire.monoids.CashflowSequenceTest.CashflowSequence;
+import com.cyrillemartraire.monoids.HistogramTest.Histogram;
+import com.cyrillemartraire.monoids.NestedMonoidMapTest.ConcatenativeString;
+import com.cyrillemartraire.monoids.NestedMonoidMapTest.Monoid;
+
+public class SegmentTreeTest {
+
+	private static final ConcatenativeString EMPTY = new ConcatenativeString("");
+
+	@Test
+	public void rangeQueriesKeepOrder() throws Exception {
+		final List<ConcatenativeString> letters = new ArrayList<>();
+		for (char c = 'a'; c <= 'k'; c++) {
+			letters.add(new ConcatenativeString(String.valueOf(c)));
+		}
+		final SegmentTree<ConcatenativeString> tree = new SegmentTree<>(EMPTY, letters);
+		assertEquals(new ConcatenativeString("abcdefghijk"), tree.query(0, 11));
+		assertEquals(new ConcatenativeString("cdefg"), tree.query(2, 7));
+		assertEquals(EMPTY, tree.query(4, 4));
+
+		tree.set(3, new ConcatenativeString("D"));
+		tree.append(5, new ConcatenativeString("+"));
+		assertEquals(new ConcatenativeString("cDef+g"), tree.query(2, 7));
+		assertEquals(new ConcatenativeString("f+"), tree.get(5));
+	}
+
+	@Test
+	public void histogramOverRange() throws Exception {
+		final Histogram empty = Histogram.empty(10);
+		final SegmentTree<Histogram> hourly = new SegmentTree<>(empty, 24);
+		for (int hour = 0; hour < 24; hour++) {
+			hourly.append(hour, empty.withPoints(hour * 4));
+		}
+		assertEquals(empty.withPoints(32, 36, 40, 44), hourly.query(8, 12));
+	}
+
+	@Test
+	public void cashflowsOverDateRange() throws Exception {
+		final Currency ccy = Currency.getInstance("EUR");
+		final LocalDate start = LocalDate.parse("2018-01-01");
+		final DateSegmentTree<CashflowSequence> calendar = new DateSegmentTree<>(CashflowSequence.EMPTY, start,
+				LocalDate.parse("2018-12-31"));
+		for (int month = 0; month < 12; month++) {
+			final LocalDate date = start.plusMonths(month);
+			calendar.append(date, new CashflowSequence(new Cashflow(120, ccy, date)));
+		}
+		final LocalDate june = LocalDate.parse("2018-06-01");
+		calendar.append(june, new CashflowSequence(new Cashflow(10000, ccy, june)));
+
+		final CashflowSequence expected = new CashflowSequence(new Cashflow(120, ccy, LocalDate.parse("2018-05-01")),
+				new Cashflow(10120, ccy, june));
+		assertEquals(expected, calendar.query(LocalDate.parse("2018-04-15"), LocalDate.parse("2018-06-30")));
+	}
+
+	/**
+	 * A segment tree over a fixed number of positions of monoid values: each
+	 * inner node caches the append of its two children, so that updating a
+	 * position and querying the append of any range both cost O(log n),
+	 * instead of a full fold. Order is preserved, so the monoid need not be
+	 * commutative. Not thread-safe.
+	 */
+	public static class SegmentTree<T extends Monoid<T>> {
+		private final T neutral;
+		private final int size;
+		private final int capacity;
+		private final Object[] nodes;
+
+		public SegmentTree(T neutral, int size) {
+			this.neutral = neutral;
+			this.size = size;
+			this.capacity = Integer.highestOneBit(Math.max(1, size - 1)) << 1;
+			this.nodes = new Object[2 * capacity];
+			Arrays.fill(nodes, neutral);
+		}
+
+		public SegmentTree(T neutral, List<T> values) {
+			this(neutral, values.size());
+			for (int i = 0; i < size; i++) {
+				nodes[capacity + i] = values.get(i);
+			}
+			for (int i = capacity - 1; i > 0; i--) {
+				nodes[i] = node(2 * i).append(node(2 * i + 1));
+			}
+		}
+
+		public int size() {
+			return size;
+		}
+
+		public T get(int index) {
+			checkIndex(index);
+			return node(capacity + index);
+		}
+
+		public void set(int index, T value) {
+			checkIndex(index);
+			int i = capacity + index;
+			nodes[i] = value;
+			for (i >>= 1; i > 0; i >>= 1) {
+				nodes[i] = node(2 * i).append(node(2 * i + 1));
+			}
+		}
+
+		/** Appends the value to the one already at this position */
+		public void append(int index, T value) {
+			set(index, get(index).append(value));
+		}
+
+		/** @return the append of the values in positions [from, to) */
+		public T query(int from, int to) {
+			if (from < 0 || to > size || from > to) {
+				throw new IllegalArgumentException("Range must be within [0, " + size + "]: " + from + ", " + to);
+			}
+			T left = neutral;
+			T right = neutral;
+			for (int l = from + capacity, r = to + capacity; l < r; l >>= 1, r >>= 1) {
+				if ((l & 1) == 1) {
+					left = left.append(node(l++));
+				}
+				if ((r & 1) == 1) {
+					right = node(--r).append(right);
+				}
+			}
+			return left.append(right);
+		}
+
+		private void checkIndex(int index) {
+			if (index < 0 || index >= size) {
+				throw new IllegalArgumentException("Index must be between 0 and " + (size - 1) + ": " + index);
+			}
+		}
+
+		@SuppressWarnings("unchecked")
+		private T node(int i) {
+			return (T) nodes[i];
+		}
+	}
+
+	/** A {@link SegmentTree} with one position per day of a calendar range */
+	public static class DateSegmentTree<T extends Monoid<T>> {
+		private final LocalDate first;
+		private final LocalDate last;
+		private final SegmentTree<T> tree;
+
+		public DateSegmentTree(T neutral, LocalDate first, LocalDate last) {
+			this.first = first;
+			this.last = last;
+			this.tree = new SegmentTree<>(neutral, indexOf(last) + 1);
+		}
+
+		public T get(LocalDate date) {
+			return tree.get(indexOf(date));
+		}
+
+		public void set(LocalDate date, T value) {
+			tree.set(indexOf(date), value);
+		}
+
+		public void append(LocalDate date, T value) {
+			tree.append(indexOf(date), value);
+		}
+
+		/** @return the append of the values from the first date to the last date, both included */
+		public T query(LocalDate from, LocalDate to) {
+			return tree.query(indexOf(from), indexOf(to) + 1);
+		}
+
+		private int indexOf(LocalDate date) {
+			if (date.isBefore(first) || date.isAfter(last)) {
+				throw new IllegalArgumentException("Date must be between " + first + " and " + last + ": " + date);
+			}
+			return (int) (date.toEpochDay() - first.toEpochDay());
+		}
+	}
+}
@@ -0,0 +1,260 @@
+package com.cyrillemartraire.monoids;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BinaryOperator;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.function.ObjDoubleConsumer;
+import java.util.function.ObjLongConsumer;
+import java.util.function.Supplier;
+
+import org.junit.Test;
+
+import com.cyrillemartraire.monoids.AverageTest.LongAverage;
+import com.cyrillemartraire.monoids.HistogramTest.Histogram;
+
+public class ShardedAccumulatorTest {
+
+	@Test
+	public void hotAverageFromManyThreads() throws Exception {
+		final ShardedAccumulator<LongAverage.Accumulator, LongAverage> average = ShardedAccumulator.averages();
+		inParallel(16, () -> {
+			for (int i = 0; i < 10_000; i++) {
+				final int value = i % 5;
+				average.record(acc -> acc.addInPlace(value));
+			}
+		});
+		assertEquals(160_000, average.result().count());
+		assertEquals(2., average.result().average(), 0.);
+	}
+
+	@Test
+	public void hotHistogramFromManyThreads() throws Exception {
+		final ShardedAccumulator<Histogram.Accumulator, Histogram> histogram = ShardedAccumulator.histograms(10);
+		inParallel(8, () -> {
+			for (int i = 0; i < 1000; i++) {
+				histogram.record(acc -> acc.addInPlace(45., 95.));
+			}
+		});
+		final Histogram.Accumulator expected = new Histogram.Accumulator(10);
+		for (int i = 0; i < 8000; i++) {
+			expected.addInPlace(45., 95.);
+		}
+		assertEquals(expected.result(), histogram.result());
+	}
+
+	@Test
+	public void primitiveRecords() throws Exception {
+		final ShardedAccumulator<LongAverage.Accumulator, LongAverage> average = ShardedAccumulator.averages();
+		final ShardedAccumulator<Histogram.Accumulator, Histogram> histogram = ShardedAccumulator.histograms(10);
+		inParallel(4, () -> {
+			for (int i = 0; i < 1000; i++) {
+				average.record(i % 3);
+				histogram.record(45.);
+			}
+		});
+		assertEquals(4000, average.result().count());
+		assertEquals(1., average.result().average(), 0.01);
+		assertEquals(100., histogram.result().frequencyInBin(4), 0.);
+		assertEquals(4000, histogram.result().count());
+	}
+
+	@Test(expected = UnsupportedOperationException.class)
+	public void noDoubleRecordsIntoAverages() throws Exception {
+		ShardedAccumulator.averages().record(0.5);
+	}
+
+	@Test
+	public void periodicFlush() throws Exception {
+		final ShardedAccumulator<LongAverage.Accumulator, LongAverage> average = ShardedAccumulator.averages();
+		average.record(acc -> acc.addInPlace(LongAverage.of(1, 2, 3)));
+		assertEquals(LongAverage.of(1, 2, 3), average.resultThenReset());
+		assertEquals(LongAverage.NEUTRAL, average.result());
+		average.record(acc -> acc.addInPlace(4));
+		assertEquals(LongAverage.of(4), average.result());
+	}
+
+	private static void inParallel(int threadCount, Runnable task) throws Exception {
+		final ExecutorService threads = Executors.newFixedThreadPool(threadCount);
+		try {
+			final List<Future<?>> futures = new ArrayList<>();
+			for (int t = 0; t < threadCount; t++) {
+				futures.add(threads.submit(task));
+			}
+			for (Future<?> future : futures) {
+				future.get();
+			}
+		} finally {
+			threads.shutdown();
+		}
+	}
+
+	/**
+	 * A hot aggregate recorded into by many threads, in the manner of
+	 * {@link java.util.concurrent.atomic.LongAdder}: it is split into a fixed
+	 * number of cells, each with its own mutable accumulator, and each thread
+	 * always records into the same cell, picked round-robin on its first
+	 * record. Threads rarely share a cell, so the lock of each cell is almost
+	 * never contended. Reading adds up the results of all the cells on demand.
+	 * <p>
+	 * Each cell and its accumulator are padded apart from the next cell, so
+	 * that threads on neighbouring cells do not share cache lines. This is best
+	 * effort since the JVM decides where objects go, but allocation order is
+	 * mostly kept; {@code @Contended} would need a JVM flag on Java 8.
+	 * <p>
+	 * The result is consistent cell by cell but not across cells while
+	 * writers are running, as with {@code LongAdder.sum()}.
+	 */
+	public static final class ShardedAccumulator<A, T> {
+
+		// two cache lines, as adjacent lines are prefetched together
+		private static final int PADDING = 128;
+
+		private static final AtomicInteger NEXT_CELL = new AtomicInteger();
+		private static final ThreadLocal<Integer> CELL = ThreadLocal.withInitial(NEXT_CELL::getAndIncrement);
+
+		private final Supplier<A> accumulators;
+		private final Function<A, T> result;
+		private final T neutral;
+		private final BinaryOperator<T> add;
+		private final ObjLongConsumer<A> longRecord;
+		private final ObjDoubleConsumer<A> doubleRecord;
+		private final Cell<A>[] cells;
+
+		/** On longs, as the int count and sum of an {@link AverageTest.Average} would soon wrap */
+		public static ShardedAccumulator<LongAverage.Accumulator, LongAverage> averages() {
+			return new ShardedAccumulator<>(LongAverage.Accumulator::new, LongAverage.Accumulator::result,
+					LongAverage.NEUTRAL, LongAverage::add, LongAverage.Accumulator::addInPlace, null, defaultCellCount());
+		}
+
+		public static ShardedAccumulator<Histogram.Accumulator, Histogram> histograms(int binsCount) {
+			return new ShardedAccumulator<>(() -> new Histogram.Accumulator(binsCount), Histogram.Accumulator::result,
+					Histogram.empty(binsCount), Histogram::add, (acc, value) -> acc.addInPlace((double) value),
+					(acc, value) -> acc.addInPlace(value), defaultCellCount());
+		}
+
+		public ShardedAccumulator(Supplier<A> accumulators, Function<A, T> result, T neutral, BinaryOperator<T> add) {
+			this(accumulators, result, neutral, add, null, null, defaultCellCount());
+		}
+
+		/**
+		 * @param longRecord
+		 *            how to record a long into an accumulator, or null
+		 * @param doubleRecord
+		 *            how to record a double into an accumulator, or null
+		 */
+		@SuppressWarnings({ "unchecked", "rawtypes" })
+		public ShardedAccumulator(Supplier<A> accumulators, Function<A, T> result, T neutral, BinaryOperator<T> add,
+				ObjLongConsumer<A> longRecord, ObjDoubleConsumer<A> doubleRecord, int cellCount) {
+			this.accumulators = accumulators;
+			this.result = result;
+			this.neutral = neutral;
+			this.add = add;
+			this.longRecord = longRecord;
+			this.doubleRecord = doubleRecord;
+			this.cells = new Cell[cellCount];
+			for (int i = 0; i < cellCount; i++) {
+				cells[i] = new Cell<>(accumulators);
+			}
+		}
+
+		private static int defaultCellCount() {
+			return 2 * Runtime.getRuntime().availableProcessors();
+		}
+
+		/** Records into the accumulator of the cell of the current thread */
+		public void record(Consumer<A> update) {
+			final Cell<A> cell = cell();
+			synchronized (cell) {
+				update.accept(cell.accumulator);
+			}
+		}
+
+		/** Records a value without allocating, if this accumulator takes longs */
+		public void record(long value) {
+			if (longRecord == null) {
+				throw new UnsupportedOperationException("Cannot record longs");
+			}
+			final Cell<A> cell = cell();
+			synchronized (cell) {
+				longRecord.accept(cell.accumulator, value);
+			}
+		}
+
+		/** Records a value without allocating, if this accumulator takes doubles */
+		public void record(double value) {
+			if (doubleRecord == null) {
+				throw new UnsupportedOperationException("Cannot record doubles");
+			}
+			final Cell<A> cell = cell();
+			synchronized (cell) {
+				doubleRecord.accept(cell.accumulator, value);
+			}
+		}
+
+		private Cell<A> cell() {
+			// the counter of threads may have wrapped to negative
+			return cells[Math.floorMod(CELL.get(), cells.length)];
+		}
+
+		/** @return the sum of the results of all the cells */
+		public T result() {
+			T sum = neutral;
+			for (Cell<A> cell : cells) {
+				synchronized (cell) {
+					sum = add.apply(sum, result.apply(cell.accumulator));
+				}
+			}
+			return sum;
+		}
+
+		/**
+		 * @return the sum of the results of all the cells, each cell being
+		 *         emptied as it is read, e.g. to flush periodically
+		 */
+		public T resultThenReset() {
+			T sum = neutral;
+			for (Cell<A> cell : cells) {
+				synchronized (cell) {
+					sum = add.apply(sum, result.apply(cell.accumulator));
+					cell.reset(accumulators);
+				}
+			}
+			return sum;
+		}
+
+		@Override
+		public String toString() {
+			return "ShardedAccumulator(" + cells.length + " cells): " + result();
+		}
+
+		/** Padding before the fields of a cell, after the object header it locks */
+		@SuppressWarnings("unused")
+		private static class CellPadding {
+			private long p1, p2, p3, p4, p5, p6, p7, p8, p9, p10, p11, p12, p13, p14, p15;
+		}
+
+		private static final class Cell<A> extends CellPadding {
+			private A accumulator;
+			// allocated right after the accumulator, to keep the next cell away from it
+			@SuppressWarnings("unused")
+			private byte[] padding;
+
+			Cell(Supplier<A> accumulators) {
+				reset(accumulators);
+			}
+
+			void reset(Supplier<A> accumulators) {
+				accumulator = accumulators.get();
+				padding = new byte[PADDING];
+			}
+		}
+	}
+}
@@ -0,0 +1,166 @@
+package com.cyrillemartraire.monoids;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.Random;
+
+import org.junit.Test;
+
+import com.cyrillemartraire.monoids.NestedMonoidMapTest.AndBoolean;
+import com.cyrillemartraire.monoids.NestedMonoidMapTest.ConcatenativeString;
+import com.cyrillemartraire.monoids.NestedMonoidMapTest.MinNumber;
+import com.cyrillemartraire.monoids.NestedMonoidMapTest.Monoid;
+
+public class SlidingWindowTest {
+
+	@Test
+	public void minOverLastValues() throws Exception {
+		final Random random = new Random(3);
+		final int[] values = new int[200];
+		final SlidingWindow<MinNumber> window = SlidingWindow.lastCount(new MinNumber(0).neutral(), 5);
+		for (int i = 0; i < values.length; i++) {
+			values[i] = random.nextInt(1000);
+			window.add(new MinNumber(values[i]));
+
+			int min = Integer.MAX_VALUE;
+			for (int j = Math.max(0, i - 4); j <= i; j++) {
+				min = Math.min(min, values[j]);
+			}
+			assertEquals(new MinNumber(min), window.aggregate());
+		}
+		assertEquals(5, window.size());
+	}
+
+	@Test
+	public void keepsOrderOfAppends() throws Exception {
+		final SlidingWindow<ConcatenativeString> window = SlidingWindow.lastCount(new ConcatenativeString(""), 3);
+		for (String s : "abcdef".split("")) {
+			window.add(new ConcatenativeString(s));
+		}
+		assertEquals(new ConcatenativeString("def"), window.aggregate());
+		window.evictOldest();
+		assertEquals(new ConcatenativeString("ef"), window.aggregate());
+	}
+
+	@Test
+	public void timeBasedWindow() throws Exception {
+		final SlidingWindow<AndBoolean> lastMinute = SlidingWindow.lastSpan(new AndBoolean(true), 60);
+		lastMinute.add(0, new AndBoolean(true));
+		lastMinute.add(30, new AndBoolean(false));
+		lastMinute.add(60, new AndBoolean(true));
+		assertEquals(new AndBoolean(false), lastMinute.aggregate());
+		lastMinute.add(91, new AndBoolean(true));
+		assertEquals(new AndBoolean(true), lastMinute.aggregate());
+		assertEquals(2, lastMinute.size());
+		lastMinute.evictUntil(200);
+		assertEquals(new AndBoolean(true), lastMinute.aggregate());
+		assertEquals(0, lastMinute.size());
+	}
+
+	/**
+	 * The append of the latest values of a stream, bounded by count or by time
+	 * span, for any monoid even without inverse, using the two-stacks
+	 * algorithm: new values go on a back stack with a running aggregate, old
+	 * values leave from a front stack where each entry caches the aggregate of
+	 * itself and all newer entries of the front. When the front is empty the
+	 * back is flipped onto it once. Each value is thus appended a constant
+	 * number of times: amortized O(1) per insert or evict. Not thread-safe.
+	 */
+	public static class SlidingWindow<T extends Monoid<T>> {
+		private final T neutral;
+		private final int maxCount;
+		private final long span;
+		private final Deque<Entry<T>> front = new ArrayDeque<>();
+		private final Deque<Entry<T>> back = new ArrayDeque<>();
+		private T backAggregate;
+
+		/** @return a window of the last given number of values */
+		public static <T extends Monoid<T>> SlidingWindow<T> lastCount(T neutral, int count) {
+			return new SlidingWindow<>(neutral, count, Long.MAX_VALUE);
+		}
+
+		/** @return a window of the values whose time is within the given span of the latest time */
+		public static <T extends Monoid<T>> SlidingWindow<T> lastSpan(T neutral, long span) {
+			return new SlidingWindow<>(neutral, Integer.MAX_VALUE, span);
+		}
+
+		public SlidingWindow(T neutral, int maxCount, long span) {
+			if (maxCount < 1 || span < 0) {
+				throw new IllegalArgumentException("Need a positive count and span: " + maxCount + ", " + span);
+			}
+			this.neutral = neutral;
+			this.maxCount = maxCount;
+			this.span = span;
+			this.backAggregate = neutral;
+		}
+
+		public void add(T value) {
+			add(0, value);
+		}
+
+		/** Adds a value at the given time, then evicts what falls out of the window */
+		public void add(long time, T value) {
+			back.addLast(new Entry<>(time, value));
+			backAggregate = backAggregate.append(value);
+			while (size() > maxCount) {
+				evictOldest();
+			}
+			if (span != Long.MAX_VALUE) {
+				evictUntil(time - span);
+			}
+		}
+
+		/** Evicts every value of time strictly before the given time */
+		public void evictUntil(long time) {
+			while (size() > 0 && oldest().time < time) {
+				evictOldest();
+			}
+		}
+
+		public void evictOldest() {
+			if (front.isEmpty()) {
+				flip();
+			}
+			front.removeFirst();
+		}
+
+		public T aggregate() {
+			return front.isEmpty() ? backAggregate : front.peekFirst().aggregate.append(backAggregate);
+		}
+
+		public int size() {
+			return front.size() + back.size();
+		}
+
+		private Entry<T> oldest() {
+			return front.isEmpty() ? back.peekFirst() : front.peekFirst();
+		}
+
+		private void flip() {
+			T aggregate = neutral;
+			for (Iterator<Entry<T>> newestFirst = back.descendingIterator(); newestFirst.hasNext();) {
+				final Entry<T> entry = newestFirst.next();
+				aggregate = entry.value.append(aggregate);
+				entry.aggregate = aggregate;
+				front.addFirst(entry);
+			}
+			back.clear();
+			backAggregate = neutral;
+		}
+
+		private static final class Entry<T> {
+			private final long time;
+			private final T value;
+			// on the front stack: the append of this value and all newer ones of the front
+			private T aggregate;
+
+			Entry(long time, T value) {
+				this.time = time;
+				this.value = value;
+			}
+		}
+	}
+}
@@ -0,0 +1,203 @@
+package com.cyrillemartraire.monoids;
+
+import static com.cyrillemartraire.monoids.EnvironmentalImpactTest.CertifiedAmount.certified;
+import static com.cyrillemartraire.monoids.EnvironmentalImpactTest.CertifiedAmount.uncertified;
+import static com.cyrillemartraire.monoids.EnvironmentalImpactTest.EnvironmentalImpact.singleSupplier;
+import static org.junit.Assert.assertEquals;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.junit.Test;
+
+import com.cyrillemartraire.monoids.EnvironmentalImpactTest.EnvironmentalImpact;
+
+public class SupplyChainTest {
+
+	private static final EnvironmentalImpact COOKING = singleSupplier(certified(1, "kWh", 0.3),
+			certified(1, "T", 0.25));
+	private static final EnvironmentalImpact DOUGH = singleSupplier(uncertified(5, "kWh", 5.),
+			uncertified(0.5, "T", 1.));
+	private static final EnvironmentalImpact TOMATO_SAUCE = singleSupplier(uncertified(3, "kWh", 1.),
+			certified(0.2, "T", 0.1));
+
+	private static SupplyChain pizzeria() {
+		return new SupplyChain().component("cooking", COOKING).component("dough", DOUGH)
+				.component("tomato sauce", TOMATO_SAUCE).component("cheese", DOUGH.times(0.5))
+				.uses("margherita", 1., "cooking").uses("margherita", 1., "dough").uses("margherita", 0.3, "tomato sauce")
+				.uses("calzone", 1., "margherita").uses("calzone", 1., "cheese").uses("menu", 1., "margherita")
+				.uses("menu", 1., "calzone");
+	}
+
+	@Test
+	public void sameAsComposingByHand() {
+		final SupplyChain chain = pizzeria();
+		final EnvironmentalImpact margherita = COOKING.add(1., DOUGH).add(0.3, TOMATO_SAUCE);
+		assertEquals(margherita, chain.impactOf("margherita"));
+		assertEquals(EnvironmentalImpact.none().add(1., margherita).add(1., DOUGH.times(0.5)),
+				chain.impactOf("calzone"));
+	}
+
+	@Test
+	public void sharedSubAssembliesAreEvaluatedOnce() {
+		final SupplyChain chain = pizzeria();
+		chain.impactOf("menu");
+		assertEquals(7, chain.evaluations());
+		chain.impactOf("margherita");
+		chain.impactOf("calzone");
+		assertEquals(7, chain.evaluations());
+	}
+
+	@Test
+	public void changingALeafReevaluatesOnlyItsAncestors() {
+		final SupplyChain chain = pizzeria();
+		chain.impactOf("menu");
+		final EnvironmentalImpact betterCheese = DOUGH.times(0.2);
+		chain.component("cheese", betterCheese);
+		assertEquals(EnvironmentalImpact.none().add(1., chain.impactOf("margherita")).add(1., betterCheese),
+				chain.impactOf("calzone"));
+		// cheese and calzone only, menu is left until asked for
+		assertEquals(9, chain.evaluations());
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void cyclesAreRejected() {
+		pizzeria().uses("dough", 1., "calzone");
+	}
+
+	/**
+	 * A supply chain as a directed acyclic graph of components, where each
+	 * component has its own impact plus the impacts of the components it uses,
+	 * weighted by quantity. Each component's total impact is memoized, so a
+	 * sub-assembly shared by many products is evaluated once; changing a
+	 * component only invalidates its ancestors, which are re-evaluated lazily.
+	 * Not thread-safe.
+	 */
+	public static class SupplyChain {
+		private final Map<String, Component> components = new HashMap<>();
+		private int evaluations;
+
+		/** Sets the own impact of a component, creating it if needed */
+		public SupplyChain component(String name, EnvironmentalImpact impact) {
+			final Component component = get(name);
+			component.impact = impact;
+			invalidate(component);
+			return this;
+		}
+
+		/** Declares that the assembly uses a quantity of the component */
+		public SupplyChain uses(String assembly, double quantity, String component) {
+			final Component parent = get(assembly);
+			final Component child = get(component);
+			if (isReachable(parent, child)) {
+				throw new IllegalArgumentException("Cycle: " + component + " already uses " + assembly);
+			}
+			parent.parts.add(new Part(quantity, child));
+			child.users.add(parent);
+			invalidate(parent);
+			return this;
+		}
+
+		public EnvironmentalImpact impactOf(String name) {
+			final Component component = components.get(name);
+			if (component == null) {
+				throw new IllegalArgumentException("Unknown component: " + name);
+			}
+			return evaluate(component);
+		}
+
+		/** @return the number of components evaluated so far, memoized ones excluded */
+		int evaluations() {
+			return evaluations;
+		}
+
+		private EnvironmentalImpact evaluate(Component component) {
+			if (component.total == null) {
+				final EnvironmentalImpact.Accumulator total = new EnvironmentalImpact.Accumulator()
+						.addInPlace(component.impact);
+				for (Part part : component.parts) {
+					total.addInPlace(part.quantity, evaluate(part.component));
+				}
+				component.total = total.result();
+				evaluations++;
+			}
+			return component.total;
+		}
+
+		private Component get(String name) {
+			Component component = components.get(name);
+			if (component == null) {
+				component = new Component(name);
+				components.put(name, component);
+			}
+			return component;
+		}
+
+		/** Forgets the memoized totals of the component and all its users */
+		private static void invalidate(Component component) {
+			final Deque<Component> pending = new ArrayDeque<>();
+			pending.push(component);
+			while (!pending.isEmpty()) {
+				final Component current = pending.pop();
+				// users of a component already invalidated were invalidated too
+				if (current.total != null || current == component) {
+					current.total = null;
+					for (Component user : current.users) {
+						pending.push(user);
+					}
+				}
+			}
+		}
+
+		private static boolean isReachable(Component target, Component from) {
+			final Set<Component> visited = new HashSet<>();
+			final Deque<Component> pending = new ArrayDeque<>();
+			pending.push(from);
+			while (!pending.isEmpty()) {
+				final Component current = pending.pop();
+				if (current == target) {
+					return true;
+				}
+				if (visited.add(current)) {
+					for (Part part : current.parts) {
+						pending.push(part.component);
+					}
+				}
+			}
+			return false;
+		}
+
+		private static final class Component {
+			private final String name;
+			private final List<Part> parts = new ArrayList<>();
+			private final Set<Component> users = new HashSet<>();
+			private EnvironmentalImpact impact = EnvironmentalImpact.none();
+			private EnvironmentalImpact total;
+
+			Component(String name) {
+				this.name = name;
+			}
+
+			@Override
+			public String toString() {
+				return name;
+			}
+		}
+
+		private static final class Part {
+			private final double quantity;
+			private final Component component;
+
+			Part(double quantity, Component component) {
+				this.quantity = quantity;
+				this.component = component;
+			}
+		}
+	}
+}
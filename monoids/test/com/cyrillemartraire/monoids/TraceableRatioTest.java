@@ -2,8 +2,13 @@ package com.cyrillemartraire.monoids;
 
 import static org.junit.Assert.assertEquals;
 
+import java.nio.ByteBuffer;
+
 import org.junit.Test;
 
+import com.cyrillemartraire.monoids.BinaryCodecTest.BinaryCodec;
+import com.cyrillemartraire.monoids.RatioTest.Rational;
+
 public class TraceableRatioTest {
 
 	@Test
@@ -17,30 +22,47 @@ public class TraceableRatioTest {
 		assertEquals(new Ratio(6, 2), new Ratio(2, 1).multiply(new Ratio(3, 2)));
 	}
 
-	/** A ratio that compose under multiplication */
+	@Test
+	public void exactBeyondInts() throws Exception {
+		final Ratio big = new Ratio(Integer.MAX_VALUE, 3);
+		assertEquals(new Ratio(Integer.MAX_VALUE, 1), big.multiply(big).multiply(new Ratio(9, Integer.MAX_VALUE)).multiply(new Ratio(1, 3)).multiply(new Ratio(3, 1)));
+		assertEquals(0.5, new Ratio(1, 2).ratio(), 0.);
+	}
+
+	/** A ratio that compose under multiplication, exact and in reduced form */
 	public static class Ratio {
 
-		private final int numerator;
-		private final int denumerator;
+		private final Rational value;
 
 		public static final Ratio NEUTRAL = new Ratio(1, 1);
 
 		public Ratio(int numerator, int denumerator) {
-			this.numerator = numerator;
-			this.denumerator = denumerator;
+			this(new Rational(numerator, denumerator));
+		}
+
+		private Ratio(Rational value) {
+			this.value = value;
+		}
+
+		void writeTo(BinaryCodec.Output out) {
+			value.writeTo(out);
+		}
+
+		static Ratio readFrom(ByteBuffer in) {
+			return new Ratio(Rational.readFrom(in));
 		}
 
 		public double ratio() {
-			return numerator / denumerator;
+			return value.ratio();
 		}
 
 		public Ratio multiply(Ratio other) {
-			return new Ratio(numerator * other.numerator, denumerator * other.denumerator);
+			return new Ratio(value.multiply(other.value));
 		}
 
 		@Override
 		public int hashCode() {
-			return 31 + denumerator ^ numerator;
+			return value.hashCode();
 		}
 
 		@Override
@@ -52,12 +74,12 @@ public class TraceableRatioTest {
 				return false;
 			}
 			Ratio other = (Ratio) obj;
-			return denumerator == other.denumerator && numerator == other.numerator;
+			return value.equals(other.value);
 		}
 
 		@Override
 		public String toString() {
-			return " " + numerator + " / " + denumerator + " = " + ratio();
+			return " " + value.asString() + " = " + ratio();
 		}
 	}
 }